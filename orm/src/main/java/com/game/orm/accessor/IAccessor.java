@@ -1,17 +1,41 @@
 package com.game.orm.accessor;
 
 import com.game.orm.entity.AbstractEntity;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.lang.Nullable;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface IAccessor {
 
     @Nullable
     <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E find(PK pk, Class<E> entityClazz);
 
+    /**
+     * 不存在时以实体默认值原子创建，一次往返
+     */
+    <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E findOrCreate(PK pk, Class<E> entityClazz);
+
+    /**
+     * 一次查询取出多个主键对应的实体，不存在的主键不在结果中
+     */
+    <PK extends Comparable<PK>, E extends AbstractEntity<PK>> List<E> findByIds(Collection<PK> pks, Class<E> entityClazz);
+
     <PK extends Comparable<PK>, E extends AbstractEntity<PK>> List<E> findAll(Class<E> entityClazz);
 
+    /**
+     * 以游标流式读取，内存中只保留一批文档；query可指定过滤条件、投影和游标批大小，使用后需关闭
+     */
+    <PK extends Comparable<PK>, E extends AbstractEntity<PK>> Stream<E> stream(Query query, Class<E> entityClazz);
+
+    /**
+     * 以游标流式读取，每凑满batchSize个实体回调一次
+     */
+    <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void forEachBatch(Query query, int batchSize, Class<E> entityClazz, Consumer<List<E>> consumer);
+
     <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void insert(E entity);
 
     <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void batchInsert(List<E> entities);
@@ -1,17 +1,125 @@
 package com.game.orm.accessor;
 
+import com.game.orm.base.Container;
 import com.game.orm.base.EventBus;
+import com.game.orm.config.OrmProperties;
 import com.game.orm.entity.AbstractEntity;
+import com.game.orm.entity.EntityKey;
+import com.game.orm.util.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-public class IoThreadAccessor implements IAccessor {
+/**
+ * 写操作切换到EventBus线程执行
+ * <p>
+ * 开启写缓冲时，每个EventBus线程按实体类累积写操作，达到batchSize或flushIntervalMs时合并为批量写入
+ */
+@Slf4j
+public class IoThreadAccessor implements IAccessor, Container {
 
     private final IAccessor delegate;
+    private final OrmProperties.WriteBehind config;
+    private final WriteBehindBuffer[] buffers;
+    private ScheduledExecutorService scheduler;
 
     public IoThreadAccessor(IAccessor delegate) {
+        this(delegate, new OrmProperties.WriteBehind());
+    }
+
+    public IoThreadAccessor(IAccessor delegate, OrmProperties.WriteBehind config) {
         this.delegate = Objects.requireNonNull(delegate);
+        this.config = Objects.requireNonNull(config);
+        this.buffers = new WriteBehindBuffer[EventBus.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new WriteBehindBuffer(delegate);
+        }
+    }
+
+    @Override
+    public void start() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("write-behind"));
+        scheduler.scheduleAtFixedRate(() -> {
+            for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i].pending() > 0) {
+                    WriteBehindBuffer buffer = buffers[i];
+                    EventBus.executorAt(i).execute(ThreadUtil.safeRunnable(buffer::flush));
+                }
+            }
+        }, config.getFlushIntervalMs(), config.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * 写在EntityService之后停止
+     */
+    @Override
+    public int priority() {
+        return 10;
+    }
+
+    /**
+     * 立即写入所有线程上缓冲的操作并等待完成
+     */
+    public void flush() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(buffers.length);
+        for (int i = 0; i < buffers.length; i++) {
+            futures.add(EventBus.executorAt(i).submit(buffers[i]::flush));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                log.error("write behind flush error", e);
+            }
+        }
+    }
+
+    /**
+     * 在路由键所在的EventBus线程上写入缓冲，达到数量阈值立即写入；未开启缓冲时直接执行
+     */
+    private void buffer(Object routeKey, Consumer<WriteBehindBuffer> op, Runnable direct) {
+        buffer(routeKey, null, op, direct);
+    }
+
+    /**
+     * @param coalesceKey 队列满时可合并的操作的合并键
+     */
+    private void buffer(Object routeKey, Object coalesceKey, Consumer<WriteBehindBuffer> op, Runnable direct) {
+        if (!config.isEnabled()) {
+            EventBus.executeCoalescing(routeKey, coalesceKey, direct);
+            return;
+        }
+        int index = EventBus.indexOf(routeKey);
+        WriteBehindBuffer buffer = buffers[index];
+        EventBus.executeCoalescing(routeKey, coalesceKey, () -> {
+            op.accept(buffer);
+            if (buffer.pending() >= config.getBatchSize()) {
+                buffer.flush();
+            }
+        });
     }
 
     @Override
@@ -19,61 +127,99 @@ public class IoThreadAccessor implements IAccessor {
         return delegate.find(pk, entityClazz);
     }
 
+    @Override
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E findOrCreate(PK pk, Class<E> entityClazz) {
+        return delegate.findOrCreate(pk, entityClazz);
+    }
+
+    @Override
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> List<E> findByIds(Collection<PK> pks, Class<E> entityClazz) {
+        return delegate.findByIds(pks, entityClazz);
+    }
+
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> List<E> findAll(Class<E> entityClazz) {
         return delegate.findAll(entityClazz);
     }
 
+    @Override
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> Stream<E> stream(Query query, Class<E> entityClazz) {
+        return delegate.stream(query, entityClazz);
+    }
+
+    @Override
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void forEachBatch(Query query, int batchSize, Class<E> entityClazz, Consumer<List<E>> consumer) {
+        delegate.forEachBatch(query, batchSize, entityClazz, consumer);
+    }
+
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void insert(E entity) {
-        EventBus.execute(entity.ThreadRouteKey(), () -> delegate.insert(entity));
+        buffer(entity.ThreadRouteKey(), buffer -> buffer.insert(entity), () -> delegate.insert(entity));
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void batchInsert(List<E> entities) {
         entities.stream()
-                .collect(Collectors.groupingBy(entity -> EventBus.executorOf(entity.ThreadRouteKey())))
-                .forEach((executor, result) -> executor.execute(() -> delegate.batchInsert(result)));
+                .collect(Collectors.groupingBy(entity -> EventBus.indexOf(entity.ThreadRouteKey())))
+                .forEach((index, result) -> buffer(result.getFirst().ThreadRouteKey(),
+                        buffer -> result.forEach(buffer::insert), () -> delegate.batchInsert(result)));
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void fullUpdate(E entity) {
-        EventBus.execute(entity.ThreadRouteKey(), () -> delegate.fullUpdate(entity));
+        // 先写入缓冲中的操作，保证与整体保存的先后顺序
+        int index = EventBus.indexOf(entity.ThreadRouteKey());
+        WriteBehindBuffer buffer = buffers[index];
+        EventBus.executeAt(index, entity.ThreadRouteKey(), () -> {
+            buffer.flush();
+            delegate.fullUpdate(entity);
+        });
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void update(E entity) {
-        EventBus.execute(entity.ThreadRouteKey(), () -> delegate.update(entity));
+        // 写入时取出实体全部待写入的Update，队列满时同一实体的多次update只需保留一次
+        buffer(entity.ThreadRouteKey(), EntityKey.of(entity), buffer -> buffer.update(entity), () -> delegate.update(entity));
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void batchUpdate(List<E> entities) {
         entities.stream()
-                .collect(Collectors.groupingBy(entity -> EventBus.executorOf(entity.ThreadRouteKey())))
-                .forEach((executor, result) -> executor.execute(() -> delegate.batchUpdate(result)));
+                .collect(Collectors.groupingBy(entity -> EventBus.indexOf(entity.ThreadRouteKey())))
+                .forEach((index, result) -> buffer(result.getFirst().ThreadRouteKey(),
+                        buffer -> result.forEach(buffer::update), () -> delegate.batchUpdate(result)));
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void delete(E entity) {
-        EventBus.execute(entity.ThreadRouteKey(), () -> delegate.delete(entity));
+        buffer(entity.ThreadRouteKey(), buffer -> {
+            entity.discardUpdates();
+            buffer.delete(entity.getClass(), entity.id());
+        }, () -> delegate.delete(entity));
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void delete(PK pk, Class<E> entityClazz) {
-        EventBus.execute(pk, () -> delegate.delete(pk, entityClazz)); // todo 不一定是以pk作为路由键
+        // todo 不一定是以pk作为路由键
+        buffer(pk, buffer -> buffer.delete(entityClazz, pk), () -> delegate.delete(pk, entityClazz));
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void batchDelete(List<E> entities) {
         entities.stream()
-                .collect(Collectors.groupingBy(entity -> EventBus.executorOf(entity.ThreadRouteKey())))
-                .forEach((executor, result) -> executor.execute(() -> delegate.batchDelete(result)));
+                .collect(Collectors.groupingBy(entity -> EventBus.indexOf(entity.ThreadRouteKey())))
+                .forEach((index, result) -> buffer(result.getFirst().ThreadRouteKey(),
+                        buffer -> result.forEach(entity -> {
+                            entity.discardUpdates();
+                            buffer.delete(entity.getClass(), entity.id());
+                        }), () -> delegate.batchDelete(result)));
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void batchDelete(List<PK> pks, Class<E> entityClazz) {
         pks.stream()
-                .collect(Collectors.groupingBy(pk -> EventBus.executorOf(pk))) // todo 不一定是以pk作为路由键
-                .forEach((executor, result) -> executor.execute(() -> delegate.batchDelete(result, entityClazz)));
+                .collect(Collectors.groupingBy(pk -> EventBus.indexOf(pk))) // todo 不一定是以pk作为路由键
+                .forEach((index, result) -> buffer(result.getFirst(),
+                        buffer -> result.forEach(pk -> buffer.delete(entityClazz, pk)), () -> delegate.batchDelete(result, entityClazz)));
     }
 }
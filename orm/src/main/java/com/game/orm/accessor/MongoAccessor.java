@@ -1,40 +1,143 @@
 package com.game.orm.accessor;
 
+import com.game.orm.base.EventBus;
 import com.game.orm.entity.AbstractEntity;
+import com.game.orm.entity.EntityAccessor;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.result.DeleteResult;
-import com.mongodb.client.result.UpdateResult;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
 import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.core.query.UpdateDefinition;
 import org.springframework.data.util.Pair;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.util.CollectionUtils;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @Slf4j
 @Component
 public class MongoAccessor implements IAccessor {
 
+    /**
+     * 写入失败的最大重试次数，超过后记录到死信日志
+     */
+    private static final int MAX_WRITE_RETRIES = 8;
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    /**
+     * 游标每次从服务端拉取的文档数
+     */
+    private static final int DEFAULT_CURSOR_BATCH_SIZE = 500;
+    private static final Logger DEAD_LETTER = LoggerFactory.getLogger("dead-letter");
+
     @Autowired
     private MongoTemplate mongoTemplate;
+    /**
+     * 退避到期后重新发送，不依赖实体再次被修改或仍在缓存中；守护线程，停服时未到期的由日志重放
+     */
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(retryThreadFactory());
+
+    private static CustomizableThreadFactory retryThreadFactory() {
+        CustomizableThreadFactory factory = new CustomizableThreadFactory("write-retry");
+        factory.setDaemon(true);
+        return factory;
+    }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E find(PK pk, Class<E> entityClazz) {
-        return mongoTemplate.findById(pk, entityClazz);
+        return baseline(mongoTemplate.findById(pk, entityClazz));
+    }
+
+    @Override
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E findOrCreate(PK pk, Class<E> entityClazz) {
+        E defaults = EntityAccessor.of(entityClazz).newInstance();
+        defaults.setId(pk);
+        Document document = new Document();
+        mongoTemplate.getConverter().write(defaults, document);
+        Update update = new Update();
+        document.forEach((key, value) -> {
+            if (!"_id".equals(key)) {
+                update.setOnInsert(key, value);
+            }
+        });
+        if (update.getUpdateObject().isEmpty()) {
+            update.setOnInsert("_id", pk);
+        }
+        return baseline(mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(pk)), update,
+                FindAndModifyOptions.options().upsert(true).returnNew(true), entityClazz));
+    }
+
+    @Override
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> List<E> findByIds(Collection<PK> pks, Class<E> entityClazz) {
+        if (CollectionUtils.isEmpty(pks)) {
+            return new ArrayList<>();
+        }
+        List<E> result = mongoTemplate.find(new Query(Criteria.where("_id").in(pks)), entityClazz);
+        result.forEach(AbstractEntity::captureBaseline);
+        return result;
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> List<E> findAll(Class<E> entityClazz) {
-        return mongoTemplate.findAll(entityClazz);
+        List<E> result = new ArrayList<>();
+        forEachBatch(new Query(), DEFAULT_CURSOR_BATCH_SIZE, entityClazz, result::addAll);
+        return result;
+    }
+
+    @Override
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> Stream<E> stream(Query query, Class<E> entityClazz) {
+        if (query.getMeta().getCursorBatchSize() == null) {
+            query.cursorBatchSize(DEFAULT_CURSOR_BATCH_SIZE);
+        }
+        return mongoTemplate.stream(query, entityClazz).map(MongoAccessor::baseline);
+    }
+
+    @Override
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void forEachBatch(Query query, int batchSize, Class<E> entityClazz, Consumer<List<E>> consumer) {
+        if (query.getMeta().getCursorBatchSize() == null) {
+            query.cursorBatchSize(batchSize);
+        }
+        List<E> batch = new ArrayList<>(batchSize);
+        try (Stream<E> stream = stream(query, entityClazz)) {
+            Iterator<E> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() >= batchSize) {
+                    consumer.accept(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+        }
+    }
+
+    /**
+     * 从DB读取的实体在IO线程上记录基线，首次检测只包含真正的修改
+     */
+    private static <E extends AbstractEntity<?>> E baseline(E entity) {
+        if (entity != null) {
+            entity.captureBaseline();
+        }
+        return entity;
     }
 
     @Override
@@ -63,28 +166,58 @@ public class MongoAccessor implements IAccessor {
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void fullUpdate(E entity) {
+        // 整体保存覆盖所有待写入的Update
+        List<Update> updates = entity.drainUpdates();
         try {
             mongoTemplate.save(entity);
+            entity.writeSucceeded();
         } catch (Exception e) {
+            entity.requeueUpdates(updates);
             log.error("{} full update error", entity.getClass().getSimpleName(), e);
         }
     }
 
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void update(E entity) {
+        if (entity.isWriteReady(System.currentTimeMillis())) {
+            write(entity);
+        }
+    }
+
+    private void write(AbstractEntity<?> entity) {
+        List<Update> updates = entity.drainUpdates();
+        if (updates.isEmpty()) {
+            return;
+        }
+        // 已生效的Update个数，失败时只重试之后的部分，$push/$inc等重复执行会重复生效
+        int applied = 0;
         try {
-            Update update = entity.getUpdateQueue().peek();
-            if (update == null) {
-                return;
+            Query query = new Query(Criteria.where("_id").is(entity.id()));
+            if (updates.size() == 1) {
+                applied = Math.toIntExact(mongoTemplate.updateFirst(query, updates.getFirst(), entity.getClass()).getMatchedCount());
+            } else {
+                // 合并后仍有冲突的多个Update，有序批量执行，一次往返
+                BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, entity.getClass());
+                updates.forEach(update -> bulkOps.updateOne(query, update));
+                try {
+                    applied = bulkOps.execute().getMatchedCount();
+                } catch (BulkOperationException e) {
+                    // 有序执行在第一个错误处停止，之前的都已执行
+                    BulkWriteError error = e.getErrors().getFirst();
+                    applied = Math.min(error.getIndex(), e.getResult().getMatchedCount());
+                    log.error("{} update error, id={}, index={}, code={}, {}", entity.getClass().getSimpleName(), entity.id(), error.getIndex(), error.getCode(), error.getMessage());
+                }
             }
-            UpdateResult result = mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(entity.id())), update, entity.getClass());
-            if (result.getModifiedCount() != 1) {
-                log.error("{} update error, expected update 1, updated {}", entity.getClass().getSimpleName(), result.getModifiedCount());
+            // 以匹配数判断，值未变化(matched但未modified)同样视为成功；同一文档的Update按顺序匹配，文档不存在时都不匹配
+            if (applied == updates.size()) {
+                entity.writeSucceeded();
             } else {
-                entity.getUpdateQueue().remove(update);
+                log.error("{} update error, id={}, expected update {}, matched {}", entity.getClass().getSimpleName(), entity.id(), updates.size(), applied);
+                retryLater(entity, updates.subList(applied, updates.size()));
             }
         } catch (Exception e) {
-            log.error("{} update error", entity.getClass().getSimpleName(), e);
+            log.error("{} update error, id={}", entity.getClass().getSimpleName(), entity.id(), e);
+            retryLater(entity, updates.subList(applied, updates.size()));
         }
     }
 
@@ -93,33 +226,112 @@ public class MongoAccessor implements IAccessor {
         if (CollectionUtils.isEmpty(entities)) {
             return;
         }
+        long now = System.currentTimeMillis();
         List<Pair<E, Update>> entityUpdates = new ArrayList<>(entities.size());
         List<Pair<Query, UpdateDefinition>> pairs = new ArrayList<>(entities.size());
         for (E entity : entities) {
-            Update update = entity.getUpdateQueue().peek();
-            if (update != null) {
-                entityUpdates.add(Pair.of(entity, update));
-                pairs.add(Pair.of(new Query(Criteria.where("_id").is(entity.id())), update));
+            if (!entity.isWriteReady(now)) {
+                continue;
+            }
+            List<Update> updates = entity.drainUpdates();
+            if (updates.isEmpty()) {
+                continue;
             }
+            // 无序批量中同一实体只能有一个Update，其余放回队列下次发送
+            Update update = updates.getFirst();
+            entity.requeueUpdates(updates.subList(1, updates.size()));
+            entityUpdates.add(Pair.of(entity, update));
+            pairs.add(Pair.of(new Query(Criteria.where("_id").is(entity.id())), update));
+        }
+        if (pairs.isEmpty()) {
+            return;
         }
+        Class<E> entityClazz = (Class<E>) entities.getFirst().getClass();
+        BitSet failed = new BitSet(pairs.size());
         try {
             // ORDERED: 有序执行，遇到错误停止
             // UNORDERED: 无序执行，遇到错误继续
-            BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, entities.getFirst().getClass());
-            BulkWriteResult result = bulkOps.updateMulti(pairs).execute();
-            if (result.getModifiedCount() != pairs.size()) {
-                // todo 检测哪些成功并移除
-                log.error("{} update error, expected update {}, updated {}", entities.getFirst().getClass().getSimpleName(), pairs.size(), result.getModifiedCount());
-            } else {
-                entityUpdates.forEach(pair -> pair.getFirst().getUpdateQueue().remove(pair.getSecond()));
+            BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, entityClazz);
+            BulkWriteResult result;
+            try {
+                result = bulkOps.updateMulti(pairs).execute();
+            } catch (BulkOperationException e) {
+                // 无序执行时其余操作已完成，只有出错的下标需要重试
+                for (BulkWriteError error : e.getErrors()) {
+                    failed.set(error.getIndex());
+                    log.error("{} update error, id={}, code={}, {}", entityClazz.getSimpleName(), entityUpdates.get(error.getIndex()).getFirst().id(), error.getCode(), error.getMessage());
+                }
+                result = e.getResult();
+            }
+            // 以匹配数判断，值未变化(matched但未modified)同样视为成功
+            int expected = pairs.size() - failed.cardinality();
+            if (result.getMatchedCount() != expected) {
+                log.error("{} update error, expected update {}, matched {}", entityClazz.getSimpleName(), expected, result.getMatchedCount());
+                markUnmatched(entityClazz, entityUpdates, failed);
             }
         } catch (Exception e) {
-            log.error("{} update error", entities.getFirst().getClass().getSimpleName(), e);
+            failed.set(0, pairs.size());
+            log.error("{} update error", entityClazz.getSimpleName(), e);
+        }
+        for (int i = 0; i < entityUpdates.size(); i++) {
+            Pair<E, Update> pair = entityUpdates.get(i);
+            if (failed.get(i)) {
+                retryLater(pair.getFirst(), List.of(pair.getSecond()));
+            } else {
+                pair.getFirst().writeSucceeded();
+            }
         }
     }
 
+    /**
+     * 匹配数不足时查询哪些文档不存在，将对应下标标记为失败
+     */
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void markUnmatched(Class<E> entityClazz, List<Pair<E, Update>> entityUpdates, BitSet failed) {
+        List<PK> pks = new ArrayList<>(entityUpdates.size());
+        for (int i = 0; i < entityUpdates.size(); i++) {
+            if (!failed.get(i)) {
+                pks.add(entityUpdates.get(i).getFirst().id());
+            }
+        }
+        Query query = new Query(Criteria.where("_id").in(pks));
+        query.fields().include("_id");
+        Set<PK> exists = new HashSet<>();
+        mongoTemplate.find(query, entityClazz).forEach(entity -> exists.add(entity.id()));
+        for (int i = 0; i < entityUpdates.size(); i++) {
+            if (!failed.get(i) && !exists.contains(entityUpdates.get(i).getFirst().id())) {
+                failed.set(i);
+            }
+        }
+    }
+
+    /**
+     * 放回队首并按指数退避延后下次写入，到期后在实体所在的IO线程上重试；超过最大重试次数后记录到死信日志并丢弃
+     */
+    private void retryLater(AbstractEntity<?> entity, List<Update> updates) {
+        long backoff = backoffMillis(entity.getWriteFailures() + 1);
+        int attempts = entity.writeFailed(System.currentTimeMillis() + backoff);
+        if (attempts <= MAX_WRITE_RETRIES) {
+            entity.requeueUpdates(updates);
+            // 退避期间的update不发送，到期时不再检查退避时间，避免定时器与系统时钟的误差导致跳过重试
+            retryScheduler.schedule(() -> EventBus.execute(entity.ThreadRouteKey(), () -> write(entity)), backoff, TimeUnit.MILLISECONDS);
+            return;
+        }
+        // 已放回队列的后续Update一并丢弃，否则会在缺少前序Update的情况下写入
+        List<Update> dropped = new ArrayList<>(updates);
+        dropped.addAll(entity.drainUpdates());
+        for (Update update : dropped) {
+            DEAD_LETTER.error("{} id={} attempts={} update={}", entity.getClass().getName(), entity.id(), attempts, update.getUpdateObject());
+        }
+        entity.writeSucceeded();
+    }
+
+    private static long backoffMillis(int attempts) {
+        return Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 20));
+    }
+
     @Override
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void delete(E entity) {
+        entity.discardUpdates();
         delete(entity.id(), entity.getClass());
     }
 
@@ -140,6 +352,7 @@ public class MongoAccessor implements IAccessor {
         if (CollectionUtils.isEmpty(entities)) {
             return;
         }
+        entities.forEach(AbstractEntity::discardUpdates);
         List<PK> pks = entities.stream().map(AbstractEntity::id).toList();
         batchDelete(pks, entities.getFirst().getClass());
     }
@@ -0,0 +1,111 @@
+package com.game.orm.accessor;
+
+import com.game.orm.entity.AbstractEntity;
+
+import java.util.*;
+
+/**
+ * 单个EventBus分区上的写缓冲，只在所属分区的串行执行器上访问，无需加锁
+ * <p>
+ * 按实体类分组累积写操作，写入时依次执行批量插入、批量更新、批量删除，保证同一实体先插入后更新再删除。
+ * 已缓冲删除的主键再次插入或更新时，先写入已缓冲的操作，避免重新插入的实体被之后执行的删除删掉
+ */
+class WriteBehindBuffer {
+
+    private final IAccessor delegate;
+    private final Map<Class<?>, ClassBuffer<?, ?>> buffers = new LinkedHashMap<>();
+    /**
+     * 由所属线程写入，定时器线程读取判断是否需要写入
+     */
+    private volatile int pending;
+
+    WriteBehindBuffer(IAccessor delegate) {
+        this.delegate = delegate;
+    }
+
+    private static class ClassBuffer<PK extends Comparable<PK>, E extends AbstractEntity<PK>> {
+        private final Class<E> clazz;
+        private final List<E> inserts = new ArrayList<>();
+        /**
+         * 同一实体多次更新只需写一次，写入时会取出实体全部待写入的Update
+         */
+        private final Set<E> updates = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Set<PK> deletes = new LinkedHashSet<>();
+
+        private ClassBuffer(Class<E> clazz) {
+            this.clazz = clazz;
+        }
+
+        private int size() {
+            return inserts.size() + updates.size() + deletes.size();
+        }
+    }
+
+    /**
+     * 同一实体类的主键类型固定，按类取出的缓冲类型是确定的
+     */
+    @SuppressWarnings("unchecked")
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> ClassBuffer<PK, E> bufferOf(Class<?> clazz) {
+        return (ClassBuffer<PK, E>) buffers.computeIfAbsent(clazz, c -> new ClassBuffer<>((Class<E>) c));
+    }
+
+    int pending() {
+        return pending;
+    }
+
+    <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void insert(E entity) {
+        flushIfDeleted(entity);
+        ClassBuffer<PK, E> buffer = bufferOf(entity.getClass());
+        buffer.inserts.add(entity);
+        pending++;
+    }
+
+    <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void update(E entity) {
+        flushIfDeleted(entity);
+        ClassBuffer<PK, E> buffer = bufferOf(entity.getClass());
+        if (buffer.updates.add(entity)) {
+            pending++;
+        }
+    }
+
+    <PK extends Comparable<PK>> void delete(Class<?> clazz, PK pk) {
+        ClassBuffer<PK, ?> buffer = bufferOf(clazz);
+        if (buffer.deletes.add(pk)) {
+            pending++;
+        }
+    }
+
+    private void flushIfDeleted(AbstractEntity<?> entity) {
+        ClassBuffer<?, ?> buffer = buffers.get(entity.getClass());
+        if (buffer != null && buffer.deletes.contains(entity.id())) {
+            flush();
+        }
+    }
+
+    void flush() {
+        if (pending == 0) {
+            return;
+        }
+        for (ClassBuffer<?, ?> buffer : buffers.values()) {
+            if (buffer.size() != 0) {
+                flushClass(buffer);
+            }
+        }
+        pending = 0;
+    }
+
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void flushClass(ClassBuffer<PK, E> buffer) {
+        if (!buffer.inserts.isEmpty()) {
+            delegate.batchInsert(new ArrayList<>(buffer.inserts));
+            buffer.inserts.clear();
+        }
+        if (!buffer.updates.isEmpty()) {
+            delegate.batchUpdate(new ArrayList<>(buffer.updates));
+            buffer.updates.clear();
+        }
+        if (!buffer.deletes.isEmpty()) {
+            delegate.batchDelete(new ArrayList<>(buffer.deletes), buffer.clazz);
+            buffer.deletes.clear();
+        }
+    }
+}
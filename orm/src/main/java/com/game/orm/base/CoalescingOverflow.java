@@ -0,0 +1,69 @@
+package com.game.orm.base;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 队列满时暂存的任务，按首次暂存的顺序执行，同一合并键后到的任务替换先到的，消费线程提交的不可合并任务不合并
+ * <p>
+ * 暂存期间提交方不再向队列写入可合并任务，外部线程的不可合并任务等待暂存清空，暂存任务在队列排空后才执行，
+ * 因此同一提交线程上同一路由键的任务不会乱序
+ */
+final class CoalescingOverflow {
+
+    private final Map<Object, Entry> entries = new LinkedHashMap<>();
+    private volatile int size;
+    final LongAdder coalesced = new LongAdder();
+
+    record Entry(Runnable task, long enqueueNanos) {
+    }
+
+    boolean isActive() {
+        return size > 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    synchronized void put(Object coalesceKey, Runnable task) {
+        Entry old = entries.get(coalesceKey);
+        if (old != null) {
+            // 保留首次暂存的位置和时间，只替换任务
+            entries.put(coalesceKey, new Entry(task, old.enqueueNanos()));
+            coalesced.increment();
+            return;
+        }
+        entries.put(coalesceKey, new Entry(task, System.nanoTime()));
+        size = entries.size();
+    }
+
+    /**
+     * 不可合并的任务，以唯一的键追加到末尾
+     */
+    synchronized void add(Runnable task) {
+        entries.put(new Object(), new Entry(task, System.nanoTime()));
+        size = entries.size();
+    }
+
+    synchronized Runnable poll() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Entry entry = iterator.next();
+        iterator.remove();
+        size = entries.size();
+        return entry.task();
+    }
+
+    /**
+     * @return 为空时返回0
+     */
+    synchronized long oldestEnqueueNanos() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        return iterator.hasNext() ? iterator.next().enqueueNanos() : 0;
+    }
+}
@@ -1,32 +1,94 @@
 package com.game.orm.base;
 
+import com.game.orm.config.OrmProperties;
 import com.game.orm.util.MathUtil;
 import com.game.orm.util.RandomUtil;
 import com.game.orm.util.ThreadUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
+import java.util.Collection;
+import java.util.Objects;
 import java.util.concurrent.*;
 
+/**
+ * IO执行器，同一路由键的任务按提交顺序串行执行
+ * <p>
+ * 默认每个分区一个平台线程；开启虚拟线程后每个分区是一个串行邮箱，分区数可以远多于线程数，
+ * 单个文档的慢IO只阻塞所在分区，不再拖慢哈希到同一线程的其他路由键
+ */
 @Slf4j
 public final class EventBus {
 
     /**
      * 适用于IO密集型任务
      */
-    private static final int EXECUTOR_SIZE = MathUtil.safeFindNextPositivePowerOfTwo(Runtime.getRuntime().availableProcessors() * 2);
-    private static final int EXECUTOR_MASK = EXECUTOR_SIZE - 1;
+    private static final int PLATFORM_SIZE = MathUtil.safeFindNextPositivePowerOfTwo(Runtime.getRuntime().availableProcessors() * 2);
 
-    private static final ExecutorService[] executors = new ExecutorService[EXECUTOR_SIZE];
+    private static volatile ExecutorService[] executors;
+    /**
+     * 未开启统计时为null
+     */
+    private static volatile RouteLoad load;
+    private static volatile RejectionHandler rejectionHandler = (key, _) -> log.error("event bus queue full, task rejected, key={}", key);
 
-    static {
-        for (int i = 0; i < executors.length; i++) {
+    /**
+     * 需在首次使用前调用，之后的调用被忽略
+     */
+    public static synchronized void configure(OrmProperties.Io config, OrmProperties.Dispatch dispatch, OrmProperties.Routing routing) {
+        if (executors != null) {
+            log.warn("event bus already started, config ignored");
+            return;
+        }
+        executors = create(config, dispatch);
+        if (routing.isStatsEnabled()) {
+            load = new RouteLoad(executors.length, routing.getMaxTrackedKeys());
+        }
+    }
+
+    private static ExecutorService[] create(OrmProperties.Io config, OrmProperties.Dispatch dispatch) {
+        OverflowPolicy overflowPolicy = config.getOverflowPolicy();
+        if (overflowPolicy == OverflowPolicy.REJECT) {
+            // 拒绝会丢失写入，改为等待
+            log.warn("event bus does not support overflow policy REJECT, use BLOCK");
+            overflowPolicy = OverflowPolicy.BLOCK;
+        }
+        if (config.isVirtualThreads()) {
+            ExecutorService carrier = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("event-v", 0).factory());
+            ExecutorService[] result = new ExecutorService[MathUtil.safeFindNextPositivePowerOfTwo(config.getPartitions())];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new SerialExecutor(PartitionExecutor.Bus.EVENT, carrier, dispatch.getCapacity(), overflowPolicy, (key, task) -> rejectionHandler.rejected(key, task));
+            }
+            log.info("event bus use {} virtual thread partitions", result.length);
+            return result;
+        }
+        ExecutorService[] result = new ExecutorService[PLATFORM_SIZE];
+        for (int i = 0; i < result.length; i++) {
             CustomizableThreadFactory namedThreadFactory = new CustomizableThreadFactory("event-p" + i);
-            ExecutorService executor = Executors.newSingleThreadExecutor(namedThreadFactory);
-            executors[i] = executor;
+            result[i] = dispatch.isRingBuffer()
+                    ? new RingBufferExecutor(PartitionExecutor.Bus.EVENT, dispatch.getCapacity(), dispatch.getDrainBatch(), dispatch.getWaitStrategy(), overflowPolicy,
+                    (key, task) -> rejectionHandler.rejected(key, task), namedThreadFactory)
+                    : new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), namedThreadFactory);
+        }
+        return result;
+    }
+
+    private static ExecutorService[] executors() {
+        ExecutorService[] result = executors;
+        if (result == null) {
+            synchronized (EventBus.class) {
+                if (executors == null) {
+                    executors = create(new OrmProperties.Io(), new OrmProperties.Dispatch());
+                }
+                result = executors;
+            }
         }
+        return result;
     }
 
+    /**
+     * 数值键直接取低位，连续主键均匀分布；其他键的hashCode经过混淆，避免低位相同的键集中到一个分区
+     */
     private static long selectExecutorHash(Object argument) {
         long hash;
         if (argument == null) {
@@ -34,23 +96,184 @@ public final class EventBus {
         } else if (argument instanceof Number) {
             hash = ((Number) argument).longValue();
         } else {
-            hash = argument.hashCode();
+            hash = MathUtil.mix64(argument.hashCode());
         }
         return hash;
     }
 
-    private static ExecutorService executorOf(long hash) {
-        return executors[Math.abs(Math.toIntExact(hash & EXECUTOR_MASK))];
+    private static int indexOf(long hash) {
+        return Math.abs(Math.toIntExact(hash & (executors().length - 1)));
+    }
+
+    /**
+     * 分区数
+     */
+    public static int size() {
+        return executors().length;
+    }
+
+    /**
+     * 批量任务(如预热)建议的并行度，与平台线程模式的线程数一致
+     */
+    public static int parallelism() {
+        return Math.min(PLATFORM_SIZE, size());
+    }
+
+    /**
+     * 路由键所在的分区序号
+     */
+    public static int indexOf(Object argument) {
+        return indexOf(selectExecutorHash(argument));
+    }
+
+    public static ExecutorService executorAt(int index) {
+        return executors()[index];
     }
 
     public static ExecutorService executorOf(Object argument) {
-        return executorOf(selectExecutorHash(argument));
+        return executors()[indexOf(argument)];
     }
 
     public static void execute(Object argument, Runnable runnable) {
-        executorOf(argument).execute(ThreadUtil.safeRunnable(runnable));
+        executeAt(indexOf(argument), argument, runnable);
+    }
+
+    /**
+     * 在指定分区上执行，key只用于负载统计
+     */
+    public static void executeAt(int index, Object key, Runnable runnable) {
+        executeAt(index, key, null, runnable);
+    }
+
+    /**
+     * 队列满且策略为COALESCE时，同一合并键的任务只执行最新的一个，只用于重复执行结果相同的任务
+     *
+     * @param coalesceKey 合并键，为null时与 {@link #execute} 相同
+     */
+    public static void executeCoalescing(Object argument, Object coalesceKey, Runnable runnable) {
+        executeAt(indexOf(argument), argument, coalesceKey, runnable);
+    }
+
+    private static void executeAt(int index, Object key, Object coalesceKey, Runnable runnable) {
+        ExecutorService executor = executors()[index];
+        RouteLoad current = load;
+        Runnable task = current != null ? TaskBus.timed(current, index, key, runnable) : runnable;
+        if (executor instanceof PartitionExecutor partition) {
+            // 分区执行器自行捕获任务异常，省去包装对象
+            partition.execute(key, coalesceKey, task);
+        } else {
+            executor.execute(ThreadUtil.safeRunnable(task));
+        }
+    }
+
+    /**
+     * 队列满且策略为REJECT时的回调，默认记录错误日志
+     */
+    public static void setRejectionHandler(RejectionHandler handler) {
+        rejectionHandler = Objects.requireNonNull(handler);
+    }
+
+    /**
+     * 各分区队列的状态
+     */
+    public static QueueStats[] queueStats() {
+        ExecutorService[] current = executors();
+        QueueStats[] result = new QueueStats[current.length];
+        for (int i = 0; i < current.length; i++) {
+            result[i] = QueueStats.of(current[i]);
+        }
+        return result;
+    }
+
+    /**
+     * 负载统计，未开启时返回null
+     */
+    public static RouteLoad load() {
+        return load;
     }
 
+    /**
+     * 多个任务作为一个队列元素执行，按顺序执行，单个任务异常不影响后续任务
+     */
+    public static void executeBatch(Object argument, Collection<? extends Runnable> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        Runnable[] batch = tasks.toArray(new Runnable[0]);
+        executeAt(indexOf(argument), argument, () -> {
+            for (Runnable task : batch) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.error("execute error", t);
+                }
+            }
+        });
+    }
+
+    /**
+     * 异步执行，在TaskBus线程上调用时结果回到当前线程，否则在IO线程上完成
+     */
+    public static <T> CompletableFuture<T> submitAsync(Object argument, Callable<T> callable) {
+        return submitAsync(argument, callable, TaskBus.currentExecutor());
+    }
+
+    /**
+     * 异步执行，在callbackKey所在的TaskBus分区上完成，完成前注册的不指定执行器的后续阶段也在该分区上执行
+     */
+    public static <T> CompletableFuture<T> submitAsync(Object argument, Callable<T> callable, Object callbackKey) {
+        return submitAsync(argument, callable, TaskBus.executorOf(callbackKey));
+    }
+
+    /**
+     * 提交被拒绝(如已停止)时返回异常结束的Future，不向调用方抛出
+     */
+    private static <T> CompletableFuture<T> submitAsync(Object argument, Callable<T> callable, Executor callback) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executeAt(indexOf(argument), argument, new AsyncTask<>(callable, callback, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private record AsyncTask<T>(Callable<T> callable, Executor callback, CompletableFuture<T> future) implements Runnable, Rejectable {
+
+        @Override
+        public void run() {
+            T result;
+            try {
+                result = callable.call();
+            } catch (Throwable t) {
+                complete(callback, () -> future.completeExceptionally(t));
+                return;
+            }
+            complete(callback, () -> future.complete(result));
+        }
+
+        @Override
+        public void onRejected() {
+            complete(callback, () -> future.completeExceptionally(new RejectedExecutionException("event bus queue full")));
+        }
+    }
+
+    private static void complete(Executor callback, Runnable completion) {
+        if (callback == null) {
+            completion.run();
+            return;
+        }
+        try {
+            callback.execute(completion);
+        } catch (RejectedExecutionException e) {
+            log.error("callback rejected, complete on io thread", e);
+            completion.run();
+        }
+    }
+
+    /**
+     * 阻塞等待结果，在TaskBus线程上调用会让该逻辑分区在IO期间停顿，应使用 {@link #submitAsync}
+     */
     public static <T> T submit(Object argument, Callable<T> callable) {
         try {
             return executorOf(argument).submit(callable).get();
@@ -0,0 +1,201 @@
+package com.game.orm.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 被重新映射的路由键，作为该键专属的执行器，提交的任务转发到当前所在的分区
+ * <p>
+ * 迁移时先暂存新任务，在原分区上执行一个屏障任务：屏障执行时原分区上此前提交的该键任务都已完成，
+ * 此时切换分区并按顺序转发暂存的任务，因此同一键的任务始终串行且保持提交顺序。
+ * 提交在锁外进行，队列满时提交方等待不会占用锁；屏障和转发走不等待不拒绝的暂存通道，不会被丢弃。
+ * 迁回散列分区时从映射表移除，之后经这个对象提交的任务重新按路由表分发
+ */
+final class KeyRoute extends AbstractExecutorService {
+
+    /**
+     * 路由表一侧的操作，由TaskBus实现
+     */
+    interface Routes {
+        /**
+         * 等待已读取映射表、按散列提交到该分区的任务完成入队
+         */
+        void awaitHashed(int index);
+
+        /**
+         * 键已回到散列分区，从映射表移除
+         */
+        void remove(KeyRoute route);
+
+        /**
+         * 按当前映射表重新分发
+         */
+        void dispatch(Object key, Object coalesceKey, Runnable command);
+    }
+
+    private final Object key;
+    private final ExecutorService[] executors;
+    /**
+     * 键按散列所在的分区
+     */
+    private final int home;
+    private final Routes routes;
+    private int index;
+    /**
+     * 已从映射表移除
+     */
+    private boolean retired;
+    /**
+     * 迁移中暂存的任务，不在迁移时为null
+     */
+    private List<Runnable> pending;
+    /**
+     * 已读取分区序号、尚未入队的提交数
+     */
+    private int inflight;
+
+    KeyRoute(Object key, ExecutorService[] executors, int home, Routes routes) {
+        this.key = key;
+        this.executors = executors;
+        this.home = home;
+        this.routes = routes;
+        this.index = home;
+    }
+
+    Object key() {
+        return key;
+    }
+
+    synchronized int index() {
+        return index;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(null, command);
+    }
+
+    /**
+     * @param coalesceKey 合并键，迁移中暂存的任务不合并
+     */
+    void execute(Object coalesceKey, Runnable command) {
+        ExecutorService executor;
+        synchronized (this) {
+            if (pending != null) {
+                pending.add(command);
+                return;
+            }
+            executor = retired ? null : executors[index];
+            if (executor != null) {
+                inflight++;
+            }
+        }
+        if (executor == null) {
+            routes.dispatch(key, coalesceKey, command);
+            return;
+        }
+        try {
+            if (executor instanceof PartitionExecutor partition) {
+                partition.execute(key, coalesceKey, command);
+            } else {
+                executor.execute(command);
+            }
+        } finally {
+            synchronized (this) {
+                if (--inflight == 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待已开始的提交入队后再放入屏障，包括登记映射前已按散列路由的提交，调用方可能因此等待分区腾出队列空间
+     *
+     * @return 已在迁移中、已从映射表移除或目标与当前分区相同时返回false
+     */
+    boolean migrate(int target) {
+        ExecutorService source;
+        synchronized (this) {
+            if (pending != null || retired || target == index) {
+                return false;
+            }
+            pending = new ArrayList<>();
+            source = executors[index];
+            boolean interrupted = false;
+            while (inflight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // 键刚登记为重新映射时可能还有按散列路由、尚未入队的提交，等它们入队后屏障才排在其后
+        routes.awaitHashed(home);
+        deliver(source, () -> switchTo(target));
+        return true;
+    }
+
+    /**
+     * 在原分区的消费线程上执行，转发不等待，持有锁期间新提交的任务继续暂存，不会越过转发的任务
+     */
+    private synchronized void switchTo(int target) {
+        index = target;
+        List<Runnable> tasks = pending;
+        pending = null;
+        for (Runnable task : tasks) {
+            deliver(executors[target], task);
+        }
+        if (target == home) {
+            // 先移除再标记，重新分发时不会再找到这个对象
+            routes.remove(this);
+            retired = true;
+        }
+    }
+
+    private void deliver(ExecutorService executor, Runnable task) {
+        if (executor instanceof PartitionExecutor partition) {
+            partition.executeUnbounded(key, task);
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KeyRoute{key=" + key + "}";
+    }
+
+    @Override
+    public void shutdown() {
+        throw new RejectedExecutionException("key route can not shutdown");
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        throw new RejectedExecutionException("key route can not shutdown");
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return false;
+    }
+}
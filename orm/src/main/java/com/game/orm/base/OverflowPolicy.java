@@ -0,0 +1,19 @@
+package com.game.orm.base;
+
+/**
+ * 分区队列满时的处理方式
+ */
+public enum OverflowPolicy {
+    /**
+     * 提交方等待队列腾出空间
+     */
+    BLOCK,
+    /**
+     * 可合并的任务按合并键暂存，同一合并键只保留最新的一个，在队列排空后执行；不可合并的任务等待
+     */
+    COALESCE,
+    /**
+     * 交给拒绝回调处理，任务不执行
+     */
+    REJECT
+}
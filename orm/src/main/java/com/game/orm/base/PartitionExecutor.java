@@ -0,0 +1,43 @@
+package com.game.orm.base;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 有界的分区执行器
+ * <p>
+ * 消费线程向本总线的分区提交、EventBus消费线程向TaskBus提交时不等待也不拒绝，队列满时追加到无界的暂存中按顺序执行；
+ * TaskBus消费线程向EventBus提交和外部线程一样按 {@link OverflowPolicy} 等待，EventBus从不等待TaskBus，不会形成循环等待
+ */
+interface PartitionExecutor extends ExecutorService {
+
+    enum Bus {
+        TASK,
+        EVENT
+    }
+
+    /**
+     * 当前线程所属总线的消费线程，其他线程为null
+     */
+    ThreadLocal<Bus> CONSUMER = new ThreadLocal<>();
+
+    /**
+     * 当前线程向target总线的分区提交时是否走不等待不拒绝的暂存通道
+     */
+    static boolean isUnbounded(Bus target) {
+        Bus current = CONSUMER.get();
+        return current == target || current == Bus.EVENT;
+    }
+
+    /**
+     * @param key         路由键，只用于拒绝回调
+     * @param coalesceKey 合并键，为null时不可合并
+     */
+    void execute(Object key, Object coalesceKey, Runnable task);
+
+    /**
+     * 不等待不拒绝，队列满时追加到暂存末尾，用于不能丢弃又不能阻塞提交方的任务(如迁移屏障)
+     */
+    void executeUnbounded(Object key, Runnable task);
+
+    QueueStats stats();
+}
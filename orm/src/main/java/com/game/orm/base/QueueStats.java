@@ -0,0 +1,27 @@
+package com.game.orm.base;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 单个分区队列的状态
+ *
+ * @param depth          待执行任务数，包含合并暂存的任务
+ * @param capacity       队列容量，不限制时为Integer.MAX_VALUE
+ * @param oldestAgeNanos 最早一个待执行任务的等待时长，队列为空时为0，无法统计时为-1
+ * @param completed      累计执行的任务数
+ * @param rejected       累计拒绝的任务数
+ * @param coalesced      累计被合并掉的任务数
+ */
+public record QueueStats(int depth, int capacity, long oldestAgeNanos, long completed, long rejected, long coalesced) {
+
+    static QueueStats of(ExecutorService executor) {
+        if (executor instanceof PartitionExecutor partition) {
+            return partition.stats();
+        }
+        if (executor instanceof ThreadPoolExecutor pool) {
+            return new QueueStats(pool.getQueue().size(), Integer.MAX_VALUE, -1, pool.getCompletedTaskCount(), 0, 0);
+        }
+        return new QueueStats(0, Integer.MAX_VALUE, -1, -1, 0, 0);
+    }
+}
@@ -0,0 +1,9 @@
+package com.game.orm.base;
+
+/**
+ * 被拒绝时需要通知提交方的任务，如异步提交需要以异常结束Future
+ */
+interface Rejectable {
+
+    void onRejected();
+}
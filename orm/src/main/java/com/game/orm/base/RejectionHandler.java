@@ -0,0 +1,14 @@
+package com.game.orm.base;
+
+/**
+ * 分区队列拒绝任务时的回调
+ */
+@FunctionalInterface
+public interface RejectionHandler {
+
+    /**
+     * @param key  任务的路由键，可能为null
+     * @param task 被拒绝的任务
+     */
+    void rejected(Object key, Runnable task);
+}
@@ -0,0 +1,370 @@
+package com.game.orm.base;
+
+import com.game.orm.util.MathUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单消费线程的执行器，任务队列为预分配的无锁多生产者单消费者环形缓冲
+ * <p>
+ * 每个槽位带序号：生产者CAS推进尾序号占位，写入任务后发布槽位序号；消费者按头序号顺序读取，无需加锁，
+ * 入队不分配节点。消费线程每次最多连续执行drainBatch个任务后再检查状态，队列为空时按等待策略等待。
+ * 任务异常由消费线程捕获记录，调用方无需再包装。队列满时按 {@link OverflowPolicy} 处理
+ */
+@Slf4j
+public final class RingBufferExecutor extends AbstractExecutorService implements PartitionExecutor {
+
+    private static final int SPIN_TRIES = 100;
+    private static final long STOP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    public enum WaitStrategy {
+        /**
+         * 忙等，延迟最低，空闲时独占一个核
+         */
+        BUSY_SPIN,
+        /**
+         * 让出CPU后重试
+         */
+        YIELD,
+        /**
+         * 挂起线程，生产者入队时唤醒
+         */
+        PARK
+    }
+
+    private final Bus bus;
+    private final Runnable[] buffer;
+    private final long[] enqueueNanos;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * 只由消费线程读写
+     */
+    private long head;
+    /**
+     * head的发布副本，供其他线程读取队列状态
+     */
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final int drainBatch;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+    private final RejectionHandler rejectionHandler;
+    private final CoalescingOverflow overflow = new CoalescingOverflow();
+    private final LongAdder rejected = new LongAdder();
+    private final Thread consumer;
+    /**
+     * 已通过关闭检查、尚未完成入队的提交数，消费线程等它归零后才判断队列为空并退出
+     */
+    private final AtomicInteger producers = new AtomicInteger();
+    private volatile boolean waiting;
+    private volatile boolean shutdown;
+    /**
+     * shutdownNow后消费线程不再执行剩余任务
+     */
+    private volatile boolean stopped;
+
+    public RingBufferExecutor(Bus bus, int capacity, int drainBatch, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy,
+                              RejectionHandler rejectionHandler, ThreadFactory threadFactory) {
+        this.bus = bus;
+        int size = MathUtil.safeFindNextPositivePowerOfTwo(Math.max(2, capacity));
+        this.buffer = new Runnable[size];
+        this.enqueueNanos = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.drainBatch = Math.max(1, drainBatch);
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.rejectionHandler = rejectionHandler;
+        this.consumer = threadFactory.newThread(this::consume);
+        this.consumer.start();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(null, null, command);
+    }
+
+    /**
+     * 本总线或EventBus的消费线程提交时不等待不拒绝，队列满或已有暂存任务时追加到暂存末尾
+     */
+    @Override
+    public void execute(Object key, Object coalesceKey, Runnable command) {
+        producers.incrementAndGet();
+        try {
+            enqueue(key, coalesceKey, command);
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    /**
+     * 先登记生产者再检查关闭：检查时未关闭的提交，消费线程退出前一定能看到它入队的任务
+     */
+    private void enqueue(Object key, Object coalesceKey, Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("ring buffer executor shutdown");
+        }
+        if (overflowPolicy == OverflowPolicy.COALESCE && coalesceKey != null) {
+            if (overflow.isActive() || !offer(command)) {
+                overflow.put(coalesceKey, command);
+            }
+            signal();
+            return;
+        }
+        if (PartitionExecutor.isUnbounded(bus)) {
+            executeUnbounded(key, command);
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.REJECT && overflow.isActive()) {
+            reject(key, command);
+            return;
+        }
+        // 外部线程等暂存的任务执行完，保持与之前暂存任务的顺序
+        for (int tries = 0; overflow.isActive() && !shutdown; tries++) {
+            backoff(tries);
+        }
+        for (int tries = 0; !offer(command); tries++) {
+            if (overflowPolicy == OverflowPolicy.REJECT || shutdown) {
+                reject(key, command);
+                return;
+            }
+            backoff(tries);
+        }
+        signal();
+    }
+
+    private void signal() {
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void reject(Object key, Runnable command) {
+        rejected.increment();
+        try {
+            if (command instanceof Rejectable rejectable) {
+                rejectable.onRejected();
+            }
+            rejectionHandler.rejected(key, command);
+        } catch (Throwable t) {
+            log.error("rejection handler error, key={}", key, t);
+        }
+    }
+
+    @Override
+    public void executeUnbounded(Object key, Runnable command) {
+        producers.incrementAndGet();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("ring buffer executor shutdown");
+            }
+            if (overflow.isActive() || !offer(command)) {
+                overflow.add(command);
+            }
+            signal();
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    private boolean offer(Runnable command) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer[index] = command;
+                    enqueueNanos[index] = System.nanoTime();
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                // 该槽位上一轮的任务还未被消费
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private Runnable poll() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Runnable command = buffer[index];
+        buffer[index] = null;
+        sequences.set(index, head + buffer.length);
+        head++;
+        consumed.lazySet(head);
+        return command;
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1 && !overflow.isActive();
+    }
+
+    /**
+     * 待执行任务数的近似值
+     */
+    public int pending() {
+        return (int) Math.max(0, tail.get() - consumed.get()) + overflow.size();
+    }
+
+    @Override
+    public QueueStats stats() {
+        long now = System.nanoTime();
+        long age = 0;
+        long position = consumed.get();
+        int index = (int) (position & mask);
+        if (sequences.get(index) == position + 1) {
+            // 读取期间槽位可能被消费并重新写入，只会使结果偏小
+            age = Math.max(0, now - enqueueNanos[index]);
+        } else if (overflow.isActive()) {
+            long oldest = overflow.oldestEnqueueNanos();
+            age = oldest == 0 ? 0 : Math.max(0, now - oldest);
+        }
+        return new QueueStats(pending(), buffer.length, age, completed.get(), rejected.sum(), overflow.coalesced.sum());
+    }
+
+    private void consume() {
+        PartitionExecutor.CONSUMER.set(bus);
+        int idle = 0;
+        while (true) {
+            int executed = 0;
+            Runnable command;
+            while (executed < drainBatch && !stopped && (command = poll()) != null) {
+                run(command);
+                executed++;
+            }
+            if (executed == 0) {
+                // 队列排空后再执行暂存的任务
+                while (executed < drainBatch && !stopped && (command = overflow.poll()) != null) {
+                    run(command);
+                    executed++;
+                }
+            }
+            if (executed > 0) {
+                completed.lazySet(completed.get() + executed);
+                idle = 0;
+                continue;
+            }
+            if (stopped || shutdown && producers.get() == 0 && isEmpty()) {
+                return;
+            }
+            idle(idle++);
+        }
+    }
+
+    private static void run(Runnable command) {
+        try {
+            command.run();
+        } catch (Throwable t) {
+            log.error("execute error", t);
+        }
+    }
+
+    private void idle(int idle) {
+        switch (waitStrategy) {
+            case BUSY_SPIN -> Thread.onSpinWait();
+            case YIELD -> Thread.yield();
+            case PARK -> {
+                if (idle < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                    return;
+                }
+                waiting = true;
+                // 先登记再检查，与生产者的先入队再检查登记配对，不会错过唤醒，shutdown同样会唤醒
+                if (isEmpty() && !shutdown) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    private static void backoff(int tries) {
+        if (tries < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else if (tries < SPIN_TRIES * 2) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        LockSupport.unpark(consumer);
+    }
+
+    /**
+     * 停止消费线程后取出剩余任务，消费线程正在执行的任务超时未结束时不返回剩余任务
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        stopped = true;
+        shutdown();
+        List<Runnable> remaining = new ArrayList<>();
+        if (Thread.currentThread() != consumer) {
+            consumer.interrupt();
+            try {
+                consumer.join(STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (consumer.isAlive()) {
+                log.warn("ring buffer consumer {} not stopped in {}ms", consumer.getName(), STOP_TIMEOUT_MILLIS);
+                return remaining;
+            }
+        }
+        // 已通过关闭检查的提交完成入队后再取出，不会有任务留在队列中无人处理
+        for (int tries = 0; producers.get() > 0; tries++) {
+            backoff(tries);
+        }
+        // 消费线程已退出(或就是当前线程)，可以安全地读取头序号
+        Runnable command;
+        while ((command = poll()) != null) {
+            remaining.add(command);
+        }
+        while ((command = overflow.poll()) != null) {
+            remaining.add(command);
+        }
+        return remaining;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && !consumer.isAlive();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        consumer.join(Math.max(1, unit.toMillis(timeout)));
+        return !consumer.isAlive();
+    }
+}
@@ -0,0 +1,135 @@
+package com.game.orm.base;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 路由负载统计，按分区和路由键累计任务数与执行耗时，每次取快照后开始新的统计窗口
+ * <p>
+ * 路由键数量超过上限后，窗口内新出现的键只计入分区不单独统计；热点键通常在窗口开始不久就会出现
+ */
+public final class RouteLoad {
+
+    private final int maxKeys;
+    private volatile Window window;
+
+    public RouteLoad(int partitions, int maxKeys) {
+        this.maxKeys = maxKeys;
+        this.window = new Window(partitions);
+    }
+
+    private static final class Window {
+        private final long startNanos = System.nanoTime();
+        private final LongAdder[] tasks;
+        private final LongAdder[] nanos;
+        private final Map<Object, KeyCounter> keys = new ConcurrentHashMap<>();
+
+        private Window(int partitions) {
+            this.tasks = new LongAdder[partitions];
+            this.nanos = new LongAdder[partitions];
+            for (int i = 0; i < partitions; i++) {
+                tasks[i] = new LongAdder();
+                nanos[i] = new LongAdder();
+            }
+        }
+    }
+
+    private static final class KeyCounter {
+        private final int partition;
+        private final LongAdder tasks = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private KeyCounter(int partition) {
+            this.partition = partition;
+        }
+    }
+
+    /**
+     * @param key 为null时只计入分区
+     */
+    public void record(int partition, Object key, long elapsedNanos) {
+        Window current = window;
+        current.tasks[partition].increment();
+        current.nanos[partition].add(elapsedNanos);
+        if (key == null) {
+            return;
+        }
+        KeyCounter counter = current.keys.get(key);
+        if (counter == null) {
+            if (current.keys.size() >= maxKeys) {
+                return;
+            }
+            counter = current.keys.computeIfAbsent(key, _ -> new KeyCounter(partition));
+        }
+        counter.tasks.increment();
+        counter.nanos.add(elapsedNanos);
+    }
+
+    /**
+     * 取出当前窗口的统计并开始新窗口
+     *
+     * @param topK 按任务数、按耗时各取前topK个键
+     */
+    public Snapshot snapshot(int topK) {
+        Window current = window;
+        window = new Window(current.tasks.length);
+        long[] tasks = new long[current.tasks.length];
+        long[] nanos = new long[current.nanos.length];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = current.tasks[i].sum();
+            nanos[i] = current.nanos[i].sum();
+        }
+        List<HotKey> keys = new ArrayList<>(current.keys.size());
+        current.keys.forEach((key, counter) -> keys.add(new HotKey(key, counter.partition, counter.tasks.sum(), counter.nanos.sum())));
+        List<HotKey> byTasks = keys.stream().sorted(Comparator.comparingLong(HotKey::tasks).reversed()).limit(topK).toList();
+        List<HotKey> byNanos = keys.stream().sorted(Comparator.comparingLong(HotKey::nanos).reversed()).limit(topK).toList();
+        return new Snapshot(System.nanoTime() - current.startNanos, tasks, nanos, byTasks, byNanos);
+    }
+
+    public record HotKey(Object key, int partition, long tasks, long nanos) {
+    }
+
+    /**
+     * @param windowNanos 统计窗口长度
+     */
+    public record Snapshot(long windowNanos, long[] partitionTasks, long[] partitionNanos, List<HotKey> topByTasks, List<HotKey> topByNanos) {
+
+        /**
+         * 耗时最多的分区
+         */
+        public int busiest() {
+            int result = 0;
+            for (int i = 1; i < partitionNanos.length; i++) {
+                if (partitionNanos[i] > partitionNanos[result]) {
+                    result = i;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 耗时最少的分区
+         */
+        public int idlest() {
+            int result = 0;
+            for (int i = 1; i < partitionNanos.length; i++) {
+                if (partitionNanos[i] < partitionNanos[result]) {
+                    result = i;
+                }
+            }
+            return result;
+        }
+
+        public long averageNanos() {
+            long total = 0;
+            for (long n : partitionNanos) {
+                total += n;
+            }
+            return partitionNanos.length == 0 ? 0 : total / partitionNanos.length;
+        }
+    }
+}
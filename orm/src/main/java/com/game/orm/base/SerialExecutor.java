@@ -0,0 +1,276 @@
+package com.game.orm.base;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 串行邮箱，任务按提交顺序逐个执行，同一时刻最多一个任务在运行
+ * <p>
+ * 不独占线程，有任务时向底层执行器提交一次排空，排空完毕即释放。底层为虚拟线程时，
+ * 一个邮箱阻塞在IO上只占用一个虚拟线程，不影响其他邮箱。任务数达到容量时按 {@link OverflowPolicy} 处理
+ */
+@Slf4j
+final class SerialExecutor extends AbstractExecutorService implements PartitionExecutor {
+
+    private static final long STOP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Bus bus;
+    private final Executor carrier;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final RejectionHandler rejectionHandler;
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final CoalescingOverflow overflow = new CoalescingOverflow();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * 已通过关闭检查、尚未完成入队的提交数，shutdownNow等它归零后再取出剩余任务
+     */
+    private final AtomicInteger producers = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile Thread drainer;
+    private volatile boolean shutdown;
+    /**
+     * shutdownNow后不再执行剩余任务
+     */
+    private volatile boolean stopped;
+
+    private record Task(Runnable command, long enqueueNanos) {
+    }
+
+    SerialExecutor(Bus bus, Executor carrier, int capacity, OverflowPolicy overflowPolicy, RejectionHandler rejectionHandler) {
+        this.bus = bus;
+        this.carrier = carrier;
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.rejectionHandler = rejectionHandler;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(null, null, command);
+    }
+
+    /**
+     * 本总线或EventBus的消费线程提交时不等待不拒绝，邮箱满或已有暂存任务时追加到暂存末尾
+     */
+    @Override
+    public void execute(Object key, Object coalesceKey, Runnable command) {
+        producers.incrementAndGet();
+        try {
+            enqueue(key, coalesceKey, command);
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    /**
+     * 先登记生产者再检查关闭：检查时未关闭的提交，关闭后一定能看到它入队的任务
+     */
+    private void enqueue(Object key, Object coalesceKey, Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("serial executor shutdown");
+        }
+        if (overflowPolicy == OverflowPolicy.COALESCE && coalesceKey != null) {
+            if (overflow.isActive() || !offer(command)) {
+                overflow.put(coalesceKey, command);
+            }
+            schedule();
+            return;
+        }
+        if (PartitionExecutor.isUnbounded(bus)) {
+            executeUnbounded(key, command);
+            return;
+        }
+        if (overflowPolicy == OverflowPolicy.REJECT && overflow.isActive()) {
+            reject(key, command);
+            return;
+        }
+        // 外部线程等暂存的任务执行完，保持与之前暂存任务的顺序
+        for (int tries = 0; overflow.isActive() && !shutdown; tries++) {
+            backoff(tries);
+        }
+        for (int tries = 0; !offer(command); tries++) {
+            if (overflowPolicy == OverflowPolicy.REJECT || shutdown) {
+                reject(key, command);
+                return;
+            }
+            backoff(tries);
+        }
+        schedule();
+    }
+
+    private void reject(Object key, Runnable command) {
+        rejected.increment();
+        try {
+            if (command instanceof Rejectable rejectable) {
+                rejectable.onRejected();
+            }
+            rejectionHandler.rejected(key, command);
+        } catch (Throwable t) {
+            log.error("rejection handler error, key={}", key, t);
+        }
+    }
+
+    @Override
+    public void executeUnbounded(Object key, Runnable command) {
+        producers.incrementAndGet();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("serial executor shutdown");
+            }
+            if (overflow.isActive() || !offer(command)) {
+                overflow.add(command);
+            }
+            schedule();
+        } finally {
+            producers.decrementAndGet();
+        }
+    }
+
+    private boolean offer(Runnable command) {
+        while (true) {
+            int current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                tasks.offer(new Task(command, System.nanoTime()));
+                return true;
+            }
+        }
+    }
+
+    private void schedule() {
+        if (!stopped && (!tasks.isEmpty() || overflow.isActive()) && scheduled.compareAndSet(false, true)) {
+            carrier.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        drainer = Thread.currentThread();
+        PartitionExecutor.CONSUMER.set(bus);
+        try {
+            while (!stopped) {
+                Task task = tasks.poll();
+                Runnable command;
+                if (task != null) {
+                    size.decrementAndGet();
+                    command = task.command();
+                } else if ((command = overflow.poll()) == null) {
+                    // 邮箱排空后再执行暂存的任务
+                    break;
+                }
+                try {
+                    command.run();
+                } catch (Throwable t) {
+                    log.error("execute error", t);
+                }
+                completed.increment();
+            }
+        } finally {
+            PartitionExecutor.CONSUMER.remove();
+            drainer = null;
+            scheduled.set(false);
+            // 释放与新任务入队之间存在竞争，重新检查一次
+            schedule();
+        }
+    }
+
+    @Override
+    public QueueStats stats() {
+        Task oldest = tasks.peek();
+        long enqueueNanos = oldest != null ? oldest.enqueueNanos() : overflow.oldestEnqueueNanos();
+        long age = enqueueNanos == 0 ? 0 : Math.max(0, System.nanoTime() - enqueueNanos);
+        return new QueueStats(size.get() + overflow.size(), capacity, age, completed.sum(), rejected.sum(), overflow.coalesced.sum());
+    }
+
+    private static void backoff(int tries) {
+        if (tries < 100) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * 等正在进行的排空结束后取出剩余任务，正在执行的任务超时未结束时不返回剩余任务
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        stopped = true;
+        shutdown = true;
+        List<Runnable> remaining = new ArrayList<>();
+        if (Thread.currentThread() != drainer) {
+            Thread current = drainer;
+            if (current != null) {
+                current.interrupt();
+            }
+            long deadline = System.nanoTime() + STOP_TIMEOUT_NANOS;
+            while (scheduled.get()) {
+                if (System.nanoTime() >= deadline) {
+                    log.warn("serial executor drain not stopped in {}ms", TimeUnit.NANOSECONDS.toMillis(STOP_TIMEOUT_NANOS));
+                    return remaining;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+        // 已通过关闭检查的提交完成入队后再取出，不会有任务留在邮箱中无人处理
+        for (int tries = 0; producers.get() > 0; tries++) {
+            backoff(tries);
+        }
+        Task task;
+        while ((task = tasks.poll()) != null) {
+            size.decrementAndGet();
+            remaining.add(task.command());
+        }
+        Runnable command;
+        while ((command = overflow.poll()) != null) {
+            remaining.add(command);
+        }
+        return remaining;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && producers.get() == 0 && (stopped || tasks.isEmpty() && !overflow.isActive()) && !scheduled.get();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+}
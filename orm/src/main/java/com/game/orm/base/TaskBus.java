@@ -1,13 +1,22 @@
 package com.game.orm.base;
 
+import com.game.orm.config.OrmProperties;
 import com.game.orm.util.MathUtil;
 import com.game.orm.util.RandomUtil;
 import com.game.orm.util.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 
+@Slf4j
 public final class TaskBus {
 
     /**
@@ -15,17 +24,113 @@ public final class TaskBus {
      */
     private static final int EXECUTOR_SIZE = MathUtil.safeFindNextPositivePowerOfTwo(Runtime.getRuntime().availableProcessors());
     private static final int EXECUTOR_MASK = EXECUTOR_SIZE - 1;
+    /**
+     * 每个分区的计数独占一个缓存行
+     */
+    private static final int INFLIGHT_STRIDE = 16;
+
+    private static volatile ExecutorService[] executors;
+    /**
+     * 当前线程所属的执行器，非TaskBus线程为null
+     */
+    private static final ThreadLocal<ExecutorService> CURRENT = new ThreadLocal<>();
+    /**
+     * 当前执行中任务的路由键，开启统计时记录，被重新映射的键据此找到转发执行器
+     */
+    private static final ThreadLocal<Object> CURRENT_KEY = new ThreadLocal<>();
+    /**
+     * 重新映射到其他分区的路由键
+     */
+    private static final Map<Object, KeyRoute> routes = new ConcurrentHashMap<>();
+    /**
+     * 各分区按散列提交、已开始读取映射表但尚未入队的任务数，迁移据此等待键登记前的提交入队
+     */
+    private static final AtomicIntegerArray hashedInflight = new AtomicIntegerArray(EXECUTOR_SIZE * INFLIGHT_STRIDE);
+    private static final KeyRoute.Routes ROUTES = new KeyRoute.Routes() {
+        @Override
+        public void awaitHashed(int index) {
+            for (int tries = 0; hashedInflight.get(index * INFLIGHT_STRIDE) > 0; tries++) {
+                if (tries < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+                }
+            }
+        }
 
-    private static final ExecutorService[] executors = new ExecutorService[EXECUTOR_SIZE];
+        @Override
+        public void remove(KeyRoute route) {
+            routes.remove(route.key(), route);
+        }
+
+        @Override
+        public void dispatch(Object key, Object coalesceKey, Runnable command) {
+            TaskBus.dispatch(key, coalesceKey, command);
+        }
+    };
+    /**
+     * 未开启统计时为null
+     */
+    private static volatile RouteLoad load;
+    private static volatile RejectionHandler rejectionHandler = (key, _) -> log.error("task bus queue full, task rejected, key={}", key);
+
+    /**
+     * 需在首次使用前调用，之后的调用被忽略
+     */
+    public static synchronized void configure(OrmProperties.Dispatch config, OrmProperties.Routing routing) {
+        if (executors != null) {
+            log.warn("task bus already started, config ignored");
+            return;
+        }
+        executors = create(config);
+        if (routing.isStatsEnabled()) {
+            load = new RouteLoad(EXECUTOR_SIZE, routing.getMaxTrackedKeys());
+        }
+    }
 
-    static {
-        for (int i = 0; i < executors.length; i++) {
+    private static ExecutorService[] create(OrmProperties.Dispatch config) {
+        ExecutorService[] result = new ExecutorService[EXECUTOR_SIZE];
+        for (int i = 0; i < result.length; i++) {
             CustomizableThreadFactory namedThreadFactory = new CustomizableThreadFactory("task-p" + i);
-            ExecutorService executor = Executors.newSingleThreadExecutor(namedThreadFactory);
-            executors[i] = executor;
+            ExecutorService executor = config.isRingBuffer()
+                    ? new RingBufferExecutor(PartitionExecutor.Bus.TASK, config.getCapacity(), config.getDrainBatch(), config.getWaitStrategy(), config.getOverflowPolicy(),
+                    (key, task) -> rejectionHandler.rejected(key, task), namedThreadFactory)
+                    : new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), namedThreadFactory);
+            executor.execute(() -> CURRENT.set(executor));
+            result[i] = executor;
         }
+        return result;
     }
 
+    private static ExecutorService[] executors() {
+        ExecutorService[] result = executors;
+        if (result == null) {
+            synchronized (TaskBus.class) {
+                if (executors == null) {
+                    executors = create(new OrmProperties.Dispatch());
+                }
+                result = executors;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 当前线程所属的执行器，非TaskBus线程返回null；当前任务的路由键被重新映射时返回该键的转发执行器，
+     * 后续阶段跟随键迁移，不会绕过迁移回到原分区
+     */
+    public static ExecutorService currentExecutor() {
+        ExecutorService current = CURRENT.get();
+        if (current == null) {
+            return null;
+        }
+        KeyRoute route = routeOf(CURRENT_KEY.get());
+        return route != null ? route : current;
+    }
+
+    /**
+     * 数值键直接取低位，连续主键均匀分布；其他键的hashCode经过混淆，避免低位相同的键集中到一个分区
+     */
     private static long selectExecutorHash(Object argument) {
         long hash;
         if (argument == null) {
@@ -33,21 +138,184 @@ public final class TaskBus {
         } else if (argument instanceof Number) {
             hash = ((Number) argument).longValue();
         } else {
-            hash = argument.hashCode();
+            hash = MathUtil.mix64(argument.hashCode());
         }
         return hash;
     }
 
-    private static ExecutorService executorOf(long hash) {
-        return executors[Math.abs(Math.toIntExact(hash & EXECUTOR_MASK))];
+    private static int indexOf(long hash) {
+        return Math.abs(Math.toIntExact(hash & EXECUTOR_MASK));
+    }
+
+    public static int size() {
+        return EXECUTOR_SIZE;
     }
 
+    /**
+     * 路由键当前所在的分区序号
+     */
+    public static int indexOf(Object argument) {
+        KeyRoute route = routeOf(argument);
+        return route != null ? route.index() : indexOf(selectExecutorHash(argument));
+    }
+
+    private static KeyRoute routeOf(Object argument) {
+        return argument == null || routes.isEmpty() ? null : routes.get(routeKey(argument));
+    }
+
+    /**
+     * 数值键按long散列，映射表也按Long登记，Integer 5与Long 5是同一个键
+     */
+    private static Object routeKey(Object argument) {
+        return argument instanceof Number number && !(argument instanceof Long) ? Long.valueOf(number.longValue()) : argument;
+    }
+
+    /**
+     * 被重新映射的键返回该键专属的转发执行器，保证迁移前后提交的任务依然有序
+     */
     public static ExecutorService executorOf(Object argument) {
-        return executorOf(selectExecutorHash(argument));
+        KeyRoute route = routeOf(argument);
+        return route != null ? route : executors()[indexOf(selectExecutorHash(argument))];
     }
 
     public static void execute(Object argument, Runnable runnable) {
-        executorOf(argument).execute(ThreadUtil.safeRunnable(runnable));
+        executeCoalescing(argument, null, runnable);
+    }
+
+    /**
+     * 队列满且策略为COALESCE时，同一合并键的任务只执行最新的一个，只用于重复执行结果相同的任务
+     *
+     * @param coalesceKey 合并键，为null时与 {@link #execute} 相同
+     */
+    public static void executeCoalescing(Object argument, Object coalesceKey, Runnable runnable) {
+        RouteLoad current = load;
+        dispatch(argument, coalesceKey, current != null ? timed(current, indexOf(argument), argument, runnable) : runnable);
+    }
+
+    /**
+     * 读取映射表前登记散列分区的计数、入队后撤销，与迁移的先登记映射再等待计数归零配对
+     */
+    private static void dispatch(Object argument, Object coalesceKey, Runnable task) {
+        int index = indexOf(selectExecutorHash(argument));
+        KeyRoute route;
+        hashedInflight.incrementAndGet(index * INFLIGHT_STRIDE);
+        try {
+            route = routeOf(argument);
+            if (route == null) {
+                ExecutorService executor = executors()[index];
+                if (executor instanceof PartitionExecutor partition) {
+                    // 分区执行器自行捕获任务异常，省去包装对象
+                    partition.execute(argument, coalesceKey, task);
+                } else {
+                    executor.execute(ThreadUtil.safeRunnable(task));
+                }
+                return;
+            }
+        } finally {
+            hashedInflight.decrementAndGet(index * INFLIGHT_STRIDE);
+        }
+        route.execute(coalesceKey, task);
+    }
+
+    static Runnable timed(RouteLoad load, int index, Object key, Runnable runnable) {
+        return new TimedTask(load, index, key, runnable);
+    }
+
+    private record TimedTask(RouteLoad load, int index, Object key, Runnable runnable) implements Runnable, Rejectable {
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            Object previous = CURRENT_KEY.get();
+            CURRENT_KEY.set(key);
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                log.error("execute error", t);
+            } finally {
+                CURRENT_KEY.set(previous);
+                load.record(index, key, System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void onRejected() {
+            if (runnable instanceof Rejectable rejectable) {
+                rejectable.onRejected();
+            }
+        }
+    }
+
+    /**
+     * 队列满且策略为REJECT时的回调，默认记录错误日志
+     */
+    public static void setRejectionHandler(RejectionHandler handler) {
+        rejectionHandler = Objects.requireNonNull(handler);
+    }
+
+    /**
+     * 各分区队列的状态
+     */
+    public static QueueStats[] queueStats() {
+        ExecutorService[] current = executors();
+        QueueStats[] result = new QueueStats[current.length];
+        for (int i = 0; i < current.length; i++) {
+            result[i] = QueueStats.of(current[i]);
+        }
+        return result;
+    }
+
+    /**
+     * 负载统计，未开启时返回null
+     */
+    public static RouteLoad load() {
+        return load;
+    }
+
+    /**
+     * 把路由键整体迁移到目标分区，在原分区处理完此前的任务后生效
+     *
+     * @return 已在迁移中或已在目标分区时返回false
+     */
+    public static boolean remap(Object key, int target) {
+        if (key == null || target < 0 || target >= EXECUTOR_SIZE) {
+            return false;
+        }
+        Object routeKey = routeKey(key);
+        if (!routes.containsKey(routeKey) && target == indexOf(selectExecutorHash(routeKey))) {
+            // 已在散列分区，不登记映射
+            return false;
+        }
+        KeyRoute route = routes.computeIfAbsent(routeKey, k -> new KeyRoute(k, executors(), indexOf(selectExecutorHash(k)), ROUTES));
+        return route.migrate(target);
+    }
+
+    /**
+     * 被重新映射的路由键及其当前分区
+     */
+    public static Map<Object, Integer> remappedKeys() {
+        Map<Object, Integer> result = new HashMap<>();
+        routes.forEach((key, route) -> result.put(key, route.index()));
+        return result;
+    }
+
+    /**
+     * 等待此前提交到各线程的任务执行完毕，用于停服前确保逻辑线程上的任务都已处理
+     */
+    public static void await(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Future<?>> futures = Arrays.stream(executors()).<Future<?>>map(executor -> executor.submit(() -> {
+        })).toList();
+        for (Future<?> future : futures) {
+            try {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("task bus await error", e);
+            }
+        }
     }
 
 }
@@ -0,0 +1,115 @@
+package com.game.orm.cache;
+
+import com.game.orm.config.OrmProperties;
+import com.game.orm.entity.AbstractEntity;
+import com.mongodb.MongoClientSettings;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 堆外二级缓存，保存从Caffeine淘汰的未修改实体，以BSON存放在 {@link OffHeapStore} 中，
+ * Caffeine未命中时先从这里恢复，再访问DB
+ */
+@Slf4j
+@Component
+public class OffHeapEntityCache {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private OrmProperties properties;
+
+    private final DocumentCodec codec = new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry());
+    private volatile OffHeapStore store;
+
+    public record Stats(long hits, long misses, long evictions, long size, long usedBytes, long allocatedBytes) {
+    }
+
+    private OffHeapStore store() {
+        OffHeapStore result = store;
+        if (result == null) {
+            synchronized (this) {
+                if (store == null) {
+                    OrmProperties.OffHeap config = properties.getOffHeap();
+                    store = new OffHeapStore(config.getMaxBytes(), config.getSegments());
+                }
+                result = store;
+            }
+        }
+        return result;
+    }
+
+    public boolean isEnabled() {
+        return properties.getOffHeap().isEnabled();
+    }
+
+    /**
+     * 保存实体，调用方需保证实体已没有待写入的修改
+     */
+    public void put(AbstractEntity<?> entity) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            Document document = new Document();
+            mongoTemplate.getConverter().write(entity, document);
+            BasicOutputBuffer buffer = new BasicOutputBuffer();
+            codec.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+            store().put(new Key(entity.getClass(), entity.id()), buffer.toByteArray());
+        } catch (RuntimeException e) {
+            log.error("{} off heap put error, id={}", entity.getClass().getSimpleName(), entity.id(), e);
+        }
+    }
+
+    /**
+     * 取出并移除，恢复的实体已记录基线
+     *
+     * @return 不存在返回null
+     */
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E take(PK id, Class<E> entityClazz) {
+        if (!isEnabled()) {
+            return null;
+        }
+        byte[] data = store().take(new Key(entityClazz, id));
+        if (data == null) {
+            return null;
+        }
+        try {
+            Document document = codec.decode(new BsonBinaryReader(ByteBuffer.wrap(data)), DecoderContext.builder().build());
+            E entity = mongoTemplate.getConverter().read(entityClazz, document);
+            entity.captureBaseline();
+            return entity;
+        } catch (RuntimeException e) {
+            log.error("{} off heap read error, id={}", entityClazz.getSimpleName(), id, e);
+            return null;
+        }
+    }
+
+    public void remove(Class<?> entityClazz, Object id) {
+        if (isEnabled()) {
+            store().remove(new Key(entityClazz, id));
+        }
+    }
+
+    public Stats stats() {
+        if (!isEnabled()) {
+            return new Stats(0, 0, 0, 0, 0, 0);
+        }
+        OffHeapStore store = store();
+        return new Stats(store.hits.sum(), store.misses.sum(), store.evictions.sum(), store.size(), store.usedBytes(), store.allocatedBytes());
+    }
+
+    private record Key(Class<?> clazz, Object id) {
+    }
+}
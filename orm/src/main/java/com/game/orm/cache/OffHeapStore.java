@@ -0,0 +1,349 @@
+package com.game.orm.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 堆外字节存储，按key散列到多个段，每段独立加锁
+ * <p>
+ * 内存按1MB页从直接内存分配，页按大小等级切成定长块(64B到1MB，2倍递增)，记录放入能容纳它的最小块。
+ * 某等级没有空闲块且内存已用满时，若该等级还没有页，或页数最多的等级超过它的两倍，从该等级回收存活记录最少的一页转给它，
+ * 避免先到的大小等级占满内存后其他等级永远放不进；否则在该等级内按CLOCK淘汰：访问过的块清除访问位跳过，未访问的块被回收
+ */
+public class OffHeapStore {
+
+    static final int PAGE_SIZE = 1 << 20;
+    private static final int MIN_CHUNK_SHIFT = 6;
+    private static final int CLASS_COUNT = 20 - MIN_CHUNK_SHIFT + 1;
+
+    private final Segment[] segments;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    public OffHeapStore(long maxBytes, int segmentCount) {
+        int count = Math.max(1, segmentCount);
+        long segmentBytes = Math.max(PAGE_SIZE, maxBytes / count);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(segmentBytes);
+        }
+    }
+
+    private Segment segmentOf(Object key) {
+        int hash = key.hashCode();
+        return segments[Math.floorMod(hash ^ (hash >>> 16), segments.length)];
+    }
+
+    /**
+     * @return 不存在返回null
+     */
+    public byte[] get(Object key) {
+        byte[] data = segmentOf(key).get(key);
+        (data == null ? misses : hits).increment();
+        return data;
+    }
+
+    /**
+     * 超过1MB的记录不缓存
+     *
+     * @return 是否放入
+     */
+    public boolean put(Object key, byte[] data) {
+        return segmentOf(key).put(key, data);
+    }
+
+    /**
+     * 取出并移除，同一段锁内完成，并发取出同一key只有一方拿到
+     *
+     * @return 不存在返回null
+     */
+    public byte[] take(Object key) {
+        byte[] data = segmentOf(key).take(key);
+        (data == null ? misses : hits).increment();
+        return data;
+    }
+
+    public void remove(Object key) {
+        segmentOf(key).remove(key);
+    }
+
+    public long usedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            used += segment.usedBytes();
+        }
+        return used;
+    }
+
+    public long allocatedBytes() {
+        long allocated = 0;
+        for (Segment segment : segments) {
+            allocated += segment.allocatedBytes();
+        }
+        return allocated;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private static final class Entry {
+        private final int sizeClass;
+        private final int chunk;
+        private final int length;
+        private boolean referenced;
+
+        private Entry(int sizeClass, int chunk, int length) {
+            this.sizeClass = sizeClass;
+            this.chunk = chunk;
+            this.length = length;
+        }
+    }
+
+    private static final class SizeClass {
+        private final int chunkSize;
+        private final int chunksPerPage;
+        /**
+         * 被回收的页留下null，下次加页时复用该位置
+         */
+        private final List<ByteBuffer> pages = new ArrayList<>();
+        private int pageCount;
+        private Object[] owners = new Object[0];
+        private int[] free = new int[0];
+        private int freeCount;
+        private int hand;
+
+        private SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerPage = PAGE_SIZE / chunkSize;
+        }
+
+        private int chunkCount() {
+            return pages.size() * chunksPerPage;
+        }
+
+        private void addPage(ByteBuffer page) {
+            int slot = pages.indexOf(null);
+            if (slot < 0) {
+                slot = pages.size();
+                pages.add(page);
+            } else {
+                pages.set(slot, page);
+            }
+            pageCount++;
+            int count = chunkCount();
+            if (owners.length < count) {
+                owners = Arrays.copyOf(owners, count);
+            }
+            if (free.length < count) {
+                free = Arrays.copyOf(free, count);
+            }
+            int first = slot * chunksPerPage;
+            for (int chunk = first + chunksPerPage - 1; chunk >= first; chunk--) {
+                free[freeCount++] = chunk;
+            }
+        }
+
+        /**
+         * 移除一页，调用方需先清空该页上的记录
+         */
+        private ByteBuffer removePage(int slot) {
+            ByteBuffer page = pages.set(slot, null);
+            pageCount--;
+            int first = slot * chunksPerPage;
+            int end = first + chunksPerPage;
+            int remaining = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (free[i] < first || free[i] >= end) {
+                    free[remaining++] = free[i];
+                }
+            }
+            freeCount = remaining;
+            return page;
+        }
+
+        private ByteBuffer page(int chunk) {
+            return pages.get(chunk / chunksPerPage);
+        }
+
+        private int offset(int chunk) {
+            return (chunk % chunksPerPage) * chunkSize;
+        }
+    }
+
+    private final class Segment {
+        private final long maxBytes;
+        private long allocatedBytes;
+        private long usedBytes;
+        private final SizeClass[] classes = new SizeClass[CLASS_COUNT];
+        private final Map<Object, Entry> index = new HashMap<>();
+
+        private Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            for (int i = 0; i < CLASS_COUNT; i++) {
+                classes[i] = new SizeClass(1 << (MIN_CHUNK_SHIFT + i));
+            }
+        }
+
+        private synchronized byte[] get(Object key) {
+            Entry entry = index.get(key);
+            if (entry == null) {
+                return null;
+            }
+            entry.referenced = true;
+            SizeClass sizeClass = classes[entry.sizeClass];
+            byte[] data = new byte[entry.length];
+            sizeClass.page(entry.chunk).get(sizeClass.offset(entry.chunk), data);
+            return data;
+        }
+
+        private synchronized byte[] take(Object key) {
+            byte[] data = get(key);
+            if (data != null) {
+                remove(key);
+            }
+            return data;
+        }
+
+        private synchronized boolean put(Object key, byte[] data) {
+            remove(key);
+            int classIndex = classIndexOf(data.length);
+            if (classIndex < 0) {
+                return false;
+            }
+            SizeClass sizeClass = classes[classIndex];
+            int chunk = allocate(sizeClass);
+            if (chunk < 0) {
+                return false;
+            }
+            sizeClass.page(chunk).put(sizeClass.offset(chunk), data);
+            sizeClass.owners[chunk] = key;
+            index.put(key, new Entry(classIndex, chunk, data.length));
+            usedBytes += data.length;
+            return true;
+        }
+
+        private synchronized void remove(Object key) {
+            Entry entry = index.remove(key);
+            if (entry == null) {
+                return;
+            }
+            SizeClass sizeClass = classes[entry.sizeClass];
+            sizeClass.owners[entry.chunk] = null;
+            sizeClass.free[sizeClass.freeCount++] = entry.chunk;
+            usedBytes -= entry.length;
+        }
+
+        private int allocate(SizeClass sizeClass) {
+            if (sizeClass.freeCount == 0 && allocatedBytes + PAGE_SIZE <= maxBytes) {
+                sizeClass.addPage(ByteBuffer.allocateDirect(PAGE_SIZE));
+                allocatedBytes += PAGE_SIZE;
+            }
+            if (sizeClass.freeCount == 0) {
+                reclaimPage(sizeClass);
+            }
+            if (sizeClass.freeCount > 0) {
+                return sizeClass.free[--sizeClass.freeCount];
+            }
+            int count = sizeClass.chunkCount();
+            if (count == 0) {
+                return -1;
+            }
+            // CLOCK：最多转两圈，第一圈清除访问位
+            for (int i = 0; i < count << 1; i++) {
+                int chunk = sizeClass.hand;
+                sizeClass.hand = (sizeClass.hand + 1) % count;
+                Object owner = sizeClass.owners[chunk];
+                if (owner == null) {
+                    continue;
+                }
+                Entry entry = index.get(owner);
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    continue;
+                }
+                index.remove(owner);
+                sizeClass.owners[chunk] = null;
+                usedBytes -= entry.length;
+                evictions.increment();
+                return chunk;
+            }
+            return -1;
+        }
+
+        /**
+         * 从页数最多的等级回收存活记录最少的一页给requester，页上的记录被淘汰
+         */
+        private void reclaimPage(SizeClass requester) {
+            SizeClass donor = null;
+            for (SizeClass sizeClass : classes) {
+                if (sizeClass != requester && (donor == null || sizeClass.pageCount > donor.pageCount)) {
+                    donor = sizeClass;
+                }
+            }
+            if (donor == null || donor.pageCount == 0) {
+                return;
+            }
+            if (requester.pageCount > 0 && donor.pageCount <= requester.pageCount << 1) {
+                return;
+            }
+            int victim = -1;
+            int fewest = Integer.MAX_VALUE;
+            for (int slot = 0; slot < donor.pages.size(); slot++) {
+                if (donor.pages.get(slot) == null) {
+                    continue;
+                }
+                int live = 0;
+                for (int chunk = slot * donor.chunksPerPage; chunk < (slot + 1) * donor.chunksPerPage; chunk++) {
+                    if (donor.owners[chunk] != null) {
+                        live++;
+                    }
+                }
+                if (live < fewest) {
+                    victim = slot;
+                    fewest = live;
+                }
+            }
+            for (int chunk = victim * donor.chunksPerPage; chunk < (victim + 1) * donor.chunksPerPage; chunk++) {
+                Object owner = donor.owners[chunk];
+                if (owner != null) {
+                    usedBytes -= index.remove(owner).length;
+                    donor.owners[chunk] = null;
+                    evictions.increment();
+                }
+            }
+            requester.addPage(donor.removePage(victim));
+        }
+
+        private synchronized long usedBytes() {
+            return usedBytes;
+        }
+
+        private synchronized long allocatedBytes() {
+            return allocatedBytes;
+        }
+
+        private synchronized int size() {
+            return index.size();
+        }
+    }
+
+    private static int classIndexOf(int length) {
+        if (length > PAGE_SIZE) {
+            return -1;
+        }
+        int shift = Math.max(MIN_CHUNK_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, length) - 1));
+        return shift - MIN_CHUNK_SHIFT;
+    }
+}
@@ -0,0 +1,30 @@
+package com.game.orm.collection;
+
+/**
+ * 可追踪变更的集合，实体字段使用该类型时 {@link com.game.orm.entity.AbstractEntity#checkUpdateFields()}
+ * 只读取变更日志，不再对整个集合计算hashcode和json
+ * <p>
+ * 只追踪集合结构上的变化(增删改元素)，元素本身应为不可变类型，修改元素内部状态不会被检测到
+ */
+public interface Tracked {
+
+    /**
+     * 自上次 {@link #commit()} 以来是否有变化，新创建且未提交过的集合视为有变化
+     */
+    boolean isChanged();
+
+    /**
+     * 变更无法(或不值得)用增量描述，需要整体覆盖
+     */
+    boolean isReset();
+
+    /**
+     * 当前内容的浅拷贝，用于写入Update
+     */
+    Object snapshot();
+
+    /**
+     * 清空变更日志，以当前内容作为新的基线
+     */
+    void commit();
+}
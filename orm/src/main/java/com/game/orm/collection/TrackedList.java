@@ -0,0 +1,134 @@
+package com.game.orm.collection;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 适用于追加为主的List，只记录尾部追加，其余修改(插入、删除、替换)都视为整体覆盖
+ * <p>
+ * 可指定容量，超出容量时从头部淘汰，适合日志、战报等定长记录。
+ * 从数据库加载时会通过无参构造创建实例，需要容量的字段应定义子类在无参构造中指定容量
+ */
+public class TrackedList<E> extends AbstractList<E> implements Tracked {
+
+    private final ArrayList<E> delegate;
+    private final int capacity;
+    /**
+     * 基线之后追加的元素个数
+     */
+    private int appended;
+    private boolean committed;
+    private boolean reset;
+
+    public TrackedList() {
+        this(0);
+    }
+
+    /**
+     * @param capacity 容量，0表示不限
+     */
+    public TrackedList(int capacity) {
+        this.delegate = new ArrayList<>();
+        this.capacity = Math.max(capacity, 0);
+    }
+
+    public TrackedList(Collection<? extends E> c) {
+        this.delegate = new ArrayList<>(c);
+        this.capacity = 0;
+    }
+
+    @Override
+    public E get(int index) {
+        return delegate.get(index);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public void add(int index, E element) {
+        if (index != delegate.size()) {
+            reset = true;
+        }
+        delegate.add(index, element);
+        modCount++;
+        if (!reset) {
+            appended++;
+        }
+        if (capacity > 0) {
+            while (delegate.size() > capacity) {
+                delegate.removeFirst();
+            }
+            appended = Math.min(appended, capacity);
+        }
+        if (appended > delegate.size() / 2 + 16) {
+            // 追加量接近整个列表，不如整体覆盖
+            reset = true;
+        }
+    }
+
+    @Override
+    public E set(int index, E element) {
+        E old = delegate.set(index, element);
+        reset = true;
+        return old;
+    }
+
+    @Override
+    public E remove(int index) {
+        E old = delegate.remove(index);
+        modCount++;
+        reset = true;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        if (delegate.isEmpty()) {
+            return;
+        }
+        delegate.clear();
+        modCount++;
+        reset = true;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 自上次提交以来追加的元素，整体覆盖时为空
+     */
+    public List<E> appended() {
+        if (reset || appended == 0) {
+            return List.of();
+        }
+        return delegate.subList(delegate.size() - appended, delegate.size());
+    }
+
+    @Override
+    public boolean isChanged() {
+        return !committed || reset || appended > 0;
+    }
+
+    @Override
+    public boolean isReset() {
+        return !committed || reset;
+    }
+
+    @Override
+    public Object snapshot() {
+        return new ArrayList<>(delegate);
+    }
+
+    @Override
+    public void commit() {
+        appended = 0;
+        reset = false;
+        committed = true;
+    }
+}
@@ -0,0 +1,186 @@
+package com.game.orm.collection;
+
+import java.util.*;
+
+/**
+ * 记录put/remove的Map，变更日志按key记录相对基线的净变化
+ */
+public class TrackedMap<K, V> extends AbstractMap<K, V> implements Tracked {
+
+    private final Map<K, V> delegate;
+    private final Set<K> changed = new LinkedHashSet<>();
+    private final Set<Object> removed = new LinkedHashSet<>();
+    private boolean committed;
+    private boolean reset;
+    private Set<Entry<K, V>> entrySet;
+
+    public TrackedMap() {
+        this.delegate = new LinkedHashMap<>();
+    }
+
+    public TrackedMap(Map<? extends K, ? extends V> m) {
+        this.delegate = new LinkedHashMap<>(m);
+    }
+
+    @Override
+    public V get(Object key) {
+        return delegate.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return delegate.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public V put(K key, V value) {
+        V old = delegate.put(key, value);
+        onPut(key);
+        return old;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!delegate.containsKey(key)) {
+            return null;
+        }
+        V old = delegate.remove(key);
+        onRemoved(key);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        if (delegate.isEmpty()) {
+            return;
+        }
+        delegate.clear();
+        changed.clear();
+        removed.clear();
+        reset = true;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private void onPut(K key) {
+        removed.remove(key);
+        changed.add(key);
+        checkOverflow();
+    }
+
+    private void onRemoved(Object key) {
+        changed.remove(key);
+        removed.add(key);
+        checkOverflow();
+    }
+
+    /**
+     * 变更量超过Map本身大小时不再记录明细，直接整体覆盖
+     */
+    private void checkOverflow() {
+        if (!reset && changed.size() + removed.size() > Math.max(delegate.size(), 16)) {
+            changed.clear();
+            removed.clear();
+            reset = true;
+        }
+    }
+
+    /**
+     * 自上次提交以来put过的key
+     */
+    public Set<K> changedKeys() {
+        return Collections.unmodifiableSet(changed);
+    }
+
+    /**
+     * 自上次提交以来删除的key
+     */
+    public Set<Object> removedKeys() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    @Override
+    public boolean isChanged() {
+        return !committed || reset || !changed.isEmpty() || !removed.isEmpty();
+    }
+
+    @Override
+    public boolean isReset() {
+        return !committed || reset;
+    }
+
+    @Override
+    public Object snapshot() {
+        return new LinkedHashMap<>(delegate);
+    }
+
+    @Override
+    public void commit() {
+        changed.clear();
+        removed.clear();
+        reset = false;
+        committed = true;
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            Iterator<Entry<K, V>> iterator = delegate.entrySet().iterator();
+            return new Iterator<>() {
+                private Entry<K, V> current;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Entry<K, V> next() {
+                    current = iterator.next();
+                    return new TrackedEntry(current);
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                    onRemoved(current.getKey());
+                }
+            };
+        }
+    }
+
+    private final class TrackedEntry extends SimpleEntry<K, V> {
+
+        private final Entry<K, V> entry;
+
+        private TrackedEntry(Entry<K, V> entry) {
+            super(entry);
+            this.entry = entry;
+        }
+
+        @Override
+        public V setValue(V value) {
+            super.setValue(value);
+            V old = entry.setValue(value);
+            onPut(entry.getKey());
+            return old;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.game.orm.collection;
+
+import java.util.*;
+
+/**
+ * 记录增删元素的Set，变更日志为相对基线的净变化
+ */
+public class TrackedSet<E> extends AbstractSet<E> implements Tracked {
+
+    private final Set<E> delegate;
+    private final Set<E> added = new LinkedHashSet<>();
+    private final Set<Object> removed = new LinkedHashSet<>();
+    private boolean committed;
+    private boolean reset;
+
+    public TrackedSet() {
+        this.delegate = new LinkedHashSet<>();
+    }
+
+    public TrackedSet(Collection<? extends E> c) {
+        this.delegate = new LinkedHashSet<>(c);
+    }
+
+    @Override
+    public boolean add(E e) {
+        if (!delegate.add(e)) {
+            return false;
+        }
+        if (!removed.remove(e)) {
+            added.add(e);
+        }
+        checkOverflow();
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!delegate.remove(o)) {
+            return false;
+        }
+        onRemoved(o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        if (delegate.isEmpty()) {
+            return;
+        }
+        delegate.clear();
+        added.clear();
+        removed.clear();
+        reset = true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return delegate.contains(o);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        Iterator<E> iterator = delegate.iterator();
+        return new Iterator<>() {
+            private E current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                onRemoved(current);
+            }
+        };
+    }
+
+    private void onRemoved(Object o) {
+        if (!added.remove(o)) {
+            removed.add(o);
+        }
+        checkOverflow();
+    }
+
+    /**
+     * 变更量超过集合本身大小时不再记录明细，直接整体覆盖
+     */
+    private void checkOverflow() {
+        if (!reset && added.size() + removed.size() > Math.max(delegate.size(), 16)) {
+            added.clear();
+            removed.clear();
+            reset = true;
+        }
+    }
+
+    /**
+     * 自上次提交以来新增的元素
+     */
+    public Set<E> added() {
+        return Collections.unmodifiableSet(added);
+    }
+
+    /**
+     * 自上次提交以来删除的元素
+     */
+    public Set<Object> removed() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    @Override
+    public boolean isChanged() {
+        return !committed || reset || !added.isEmpty() || !removed.isEmpty();
+    }
+
+    @Override
+    public boolean isReset() {
+        return !committed || reset;
+    }
+
+    @Override
+    public Object snapshot() {
+        return new LinkedHashSet<>(delegate);
+    }
+
+    @Override
+    public void commit() {
+        added.clear();
+        removed.clear();
+        reset = false;
+        committed = true;
+    }
+}
@@ -3,7 +3,10 @@ package com.game.orm.config;
 import com.game.orm.accessor.IAccessor;
 import com.game.orm.accessor.IoThreadAccessor;
 import com.game.orm.accessor.MongoAccessor;
+import com.game.orm.base.EventBus;
+import com.game.orm.base.TaskBus;
 import org.springframework.beans.factory.BeanFactory;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.convert.CustomConversions;
@@ -16,6 +19,7 @@ import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
 import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
 
 @Configuration
+@EnableConfigurationProperties(OrmProperties.class)
 public class MongoConfig {
 
     @Bean
@@ -34,7 +38,10 @@ public class MongoConfig {
     }
 
     @Bean
-    IAccessor accessor(MongoAccessor mongoAccessor) {
-        return new IoThreadAccessor(mongoAccessor);
+    IAccessor accessor(MongoAccessor mongoAccessor, OrmProperties properties) {
+        // 写缓冲按EventBus分区数创建，需先确定执行模式
+        EventBus.configure(properties.getIo(), properties.getDispatch(), properties.getRouting());
+        TaskBus.configure(properties.getDispatch(), properties.getRouting());
+        return new IoThreadAccessor(mongoAccessor, properties.getWriteBehind());
     }
 }
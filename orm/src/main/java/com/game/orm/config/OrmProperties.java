@@ -0,0 +1,211 @@
+package com.game.orm.config;
+
+import com.game.orm.base.OverflowPolicy;
+import com.game.orm.base.RingBufferExecutor;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * orm相关配置，对应application.yml中的orm节点
+ */
+@Data
+@ConfigurationProperties(prefix = "orm")
+public class OrmProperties {
+
+    private WriteBehind writeBehind = new WriteBehind();
+    private Journal journal = new Journal();
+    private ExistenceFilter existenceFilter = new ExistenceFilter();
+    private Flush flush = new Flush();
+    private Cache cache = new Cache();
+    private Warmup warmup = new Warmup();
+    private OffHeap offHeap = new OffHeap();
+    private Io io = new Io();
+    private Dispatch dispatch = new Dispatch();
+    private Routing routing = new Routing();
+
+    /**
+     * IO线程写缓冲，按实体类和EventBus线程累积写操作，达到数量或时间阈值时批量写入
+     */
+    @Data
+    public static class WriteBehind {
+        private boolean enabled = true;
+        /**
+         * 单个线程缓冲的操作数达到该值立即写入
+         */
+        private int batchSize = 500;
+        /**
+         * 最长缓冲时间(毫秒)
+         */
+        private long flushIntervalMs = 200;
+    }
+
+    /**
+     * 本地预写日志，记录已计算但尚未确认写入DB的Update，启动时重放
+     * <p>
+     * 默认关闭，开启时dir应配置为持久化磁盘上的绝对路径，相对路径随工作目录变化会找不到上次的日志
+     */
+    @Data
+    public static class Journal {
+        private boolean enabled = false;
+        private String dir = "journal";
+        /**
+         * 单个日志段文件大小(字节)
+         */
+        private int segmentSize = 64 * 1024 * 1024;
+        /**
+         * 刷盘间隔(毫秒)，间隔内的追加合并为一次fsync
+         */
+        private long syncIntervalMs = 10;
+    }
+
+    /**
+     * 已存在主键的布隆过滤器，判定不存在的主键直接在本地创建，不再访问DB
+     * <p>
+     * 多节点同时创建同一主键时可能冲突，仅在主键只由单个节点分配时开启
+     */
+    @Data
+    public static class ExistenceFilter {
+        private boolean enabled = false;
+        private long expectedInsertions = 1_000_000;
+        private double fpp = 0.01;
+    }
+
+    /**
+     * 被访问实体的检测写入周期，周期内按秒分片检测
+     */
+    @Data
+    public static class Flush {
+        private int intervalSeconds = 60;
+    }
+
+    @Data
+    public static class Cache {
+        /**
+         * 覆盖实体类上的CachePolicy注解，key为简单类名或全限定类名
+         */
+        private Map<String, Policy> policies = new HashMap<>();
+    }
+
+    /**
+     * 未配置的项使用注解上的值
+     */
+    @Data
+    public static class Policy {
+        private Long maximumSize;
+        private Long maximumWeight;
+        private Long expireAfterAccessSeconds;
+        private Long refreshAfterWriteSeconds;
+        private Integer flushIntervalSeconds;
+        private Long warmupLimit;
+        private String warmupFilter;
+        private String warmupSort;
+    }
+
+    /**
+     * 启动时预热缓存，各实体类的预热数量和条件见CachePolicy
+     * <p>
+     * 默认关闭：开启后启动时扫描basePackage并读取各实体类的预热数据，预热完成前启动阻塞
+     */
+    @Data
+    public static class Warmup {
+        private boolean enabled = false;
+        private String basePackage = "com.game";
+        private long timeoutSeconds = 300;
+    }
+
+    /**
+     * 堆外二级缓存，保存从堆内缓存淘汰的未修改实体
+     */
+    @Data
+    public static class OffHeap {
+        private boolean enabled = false;
+        /**
+         * 直接内存上限(字节)，需小于-XX:MaxDirectMemorySize
+         */
+        private long maxBytes = 1L << 30;
+        private int segments = 16;
+    }
+
+    /**
+     * EventBus执行模式
+     */
+    @Data
+    public static class Io {
+        /**
+         * 每个分区使用虚拟线程上的串行邮箱代替独占的平台线程
+         */
+        private boolean virtualThreads = false;
+        /**
+         * 虚拟线程模式的分区数，向上取2的幂；同一分区内仍按提交顺序执行
+         */
+        private int partitions = 1024;
+        /**
+         * EventBus分区队列满时的处理方式，与TaskBus分开配置；EventBus上是DB写入，不支持REJECT
+         */
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    }
+
+    /**
+     * TaskBus和EventBus各分区的任务队列
+     */
+    @Data
+    public static class Dispatch {
+        /**
+         * 使用无锁环形缓冲代替LinkedBlockingQueue，关闭后队列无界，不支持overflowPolicy
+         */
+        private boolean ringBuffer = true;
+        /**
+         * 每个分区的队列容量，环形缓冲向上取2的幂，满时外部线程和TaskBus向EventBus的提交按overflowPolicy处理，本总线和EventBus消费线程的提交暂存到无界的溢出队列
+         */
+        private int capacity = 8192;
+        /**
+         * 消费线程连续执行的最大任务数
+         */
+        private int drainBatch = 256;
+        private RingBufferExecutor.WaitStrategy waitStrategy = RingBufferExecutor.WaitStrategy.PARK;
+        /**
+         * TaskBus分区队列满时的处理方式，EventBus使用io.overflowPolicy；虚拟线程模式的EventBus同样按capacity限制每个分区的任务数
+         */
+        private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        /**
+         * 队列状态检查间隔
+         */
+        private long monitorIntervalMs = 5000;
+        /**
+         * 分区最早任务等待超过该时长时输出警告
+         */
+        private long lagWarnMs = 5000;
+    }
+
+    /**
+     * 路由负载统计与热点键迁移
+     */
+    @Data
+    public static class Routing {
+        /**
+         * 按分区和路由键统计任务数与耗时，开启后每个任务多一次计时
+         */
+        private boolean statsEnabled = false;
+        /**
+         * 每个统计窗口单独统计的路由键上限
+         */
+        private int maxTrackedKeys = 10000;
+        private int topK = 10;
+        /**
+         * 统计窗口长度，每个窗口结束时输出热点键并尝试迁移
+         */
+        private long rebalanceIntervalMs = 10000;
+        /**
+         * 把最忙分区上的热点键迁移到最闲分区，需同时开启统计；只作用于TaskBus
+         */
+        private boolean remapEnabled = false;
+        /**
+         * 最忙分区耗时超过平均值的倍数时才迁移
+         */
+        private double imbalanceRatio = 1.5;
+        private int maxRemappedKeys = 1024;
+    }
+}
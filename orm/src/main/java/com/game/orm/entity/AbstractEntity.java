@@ -1,6 +1,11 @@
 package com.game.orm.entity;
 
-import com.alibaba.fastjson2.JSON;
+import com.game.orm.collection.Tracked;
+import com.game.orm.collection.TrackedList;
+import com.game.orm.collection.TrackedMap;
+import com.game.orm.collection.TrackedSet;
+import com.game.orm.journal.Journal;
+import com.game.orm.util.ObjectCloner;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -8,15 +13,16 @@ import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.query.Update;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public abstract class AbstractEntity<PK extends Comparable<PK>> implements IEntity<PK> {
 
+    private static final long[] NO_SEQS = new long[0];
+
     @Id
     @Setter
     private PK id;
@@ -26,139 +32,449 @@ public abstract class AbstractEntity<PK extends Comparable<PK>> implements IEnti
         return id;
     }
 
-    private static final Map<Class<?>, List<Field>> ENTITY_FIELDS_MAP = new ConcurrentHashMap<>();
-
+    /**
+     * 字段快照，每个字段占两格：基本类型存原始位，引用类型存128位指纹，可追踪集合存实例的identityHashCode
+     */
     @Transient
-    private final Map<String, Integer> fieldNameHash = new HashMap<>();
+    private long[] fingerprints;
     @Transient
-    private final Map<String, String> fieldNameJson = new HashMap<>();
+    private boolean[] captured;
+    /**
+     * 待写入的Update，逻辑线程写入、IO线程取出，写入时与队尾合并，正常情况下最多只有一个
+     */
+    @Transient
+    @Getter
+    private final Deque<Update> updateQueue = new ConcurrentLinkedDeque<>();
+    /**
+     * 连续写入失败次数和下次允许写入的时间，只在IO线程上读写
+     */
     @Transient
     @Getter
-    private final Queue<Update> updateQueue = new ConcurrentLinkedQueue<>();
+    private int writeFailures;
+    @Transient
+    private long nextWriteTime;
+    /**
+     * IO线程已取出、尚未确认写入的Update
+     */
+    @Transient
+    private volatile boolean writing;
+    /**
+     * 引用计数，大于0时不会被缓存淘汰
+     */
+    @Transient
+    private final AtomicInteger pins = new AtomicInteger();
+    /**
+     * 自上次检测后是否被访问过，用于登记到待检测集合
+     */
+    @Transient
+    private final AtomicBoolean touched = new AtomicBoolean();
+    /**
+     * 队列中最早一条Update的日志序号，以及IO线程已取出但尚未确认的最早序号，0表示没有，由updateQueue加锁保护
+     */
+    @Transient
+    private long journalHead;
+    @Transient
+    private long journalInflight;
+    /**
+     * 最后一条记录的日志序号
+     */
+    @Transient
+    private long journalTail;
+    /**
+     * 与updateQueue一一对应，执行完该Update后可以确认的日志序号(之前的记录都已完整生效)，0表示没有
+     */
+    @Transient
+    private final Deque<Long> journalSeqs = new ArrayDeque<>();
+    /**
+     * IO线程已取出的各个Update可以确认的日志序号，以及写入成功后追加确认记录的序号；
+     * 只发送了一部分时确认序号降为已发送部分的序号，放回队列的记录不会被确认
+     */
+    @Transient
+    private long[] journalInflightSeqs = NO_SEQS;
+    @Transient
+    private long journalInflightTail;
 
     public boolean checkUpdateFields() {
         Update update = new Update();
+        Update followUp = new Update();
         boolean hasUpdate = false;
-        List<Field> fields = getAllPersistFields();
-        for (Field field : fields) {
-            field.setAccessible(true);
+        EntityAccessor accessor = EntityAccessor.of(this.getClass());
+        if (fingerprints == null) {
+            fingerprints = new long[accessor.size() << 1];
+            captured = new boolean[accessor.size()];
+        }
+        Fingerprint fingerprint = new Fingerprint();
+        for (EntityField field : accessor.fields()) {
             try {
-                String fieldName = field.getName();
-                if ("id".equals(fieldName)) {
+                if (field.isPrimitive()) {
+                    hasUpdate |= checkPrimitiveField(field, update);
                     continue;
                 }
+                int ordinal = field.getOrdinal();
                 Object value = field.get(this);
                 if (value == null) {
-                    if (fieldNameHash.containsKey(fieldName) || fieldNameJson.containsKey(fieldName)) {
-                        fieldNameHash.remove(fieldName);
-                        fieldNameJson.remove(fieldName);
-                        update.set(fieldName, null);
+                    if (captured[ordinal]) {
+                        captured[ordinal] = false;
+                        update.set(field.getName(), null);
                         hasUpdate = true;
                     }
+                } else if (value instanceof Tracked tracked) {
+                    hasUpdate |= checkTrackedField(field, tracked, update, followUp);
                 } else {
-                    int hashCode = value.hashCode();
-                    if (!fieldNameHash.containsKey(fieldName) || fieldNameHash.get(fieldName) != hashCode) {
-                        fieldNameHash.put(fieldName, hashCode);
-                        String json = null;
-                        if (needCheckJson(value)) {
-                            json = JSON.toJSONString(value);
-                            fieldNameJson.put(fieldName, json);
-                        }
-                        if (isImmutableType(value)) {
-                            update.set(fieldName, value);
-                            hasUpdate = true;
-                        } else {
-                            if (json == null) {
-                                json = JSON.toJSONString(value);
-                            }
-                            Object clone = JSON.parseObject(json, value.getClass());
-                            if (clone != null) {
-                                update.set(fieldName, clone);
-                                hasUpdate = true;
-                            }
-                        }
-                    } else {
-                        // hashcode一致再转json检测是否一致
-                        if (needCheckJson(value)) {
-                            String json = JSON.toJSONString(value);
-                            if (!fieldNameJson.containsKey(fieldName) || !fieldNameJson.get(fieldName).equals(json)) {
-                                fieldNameJson.put(fieldName, json);
-                                Object clone = JSON.parseObject(json, value.getClass());
-                                if (clone != null) {
-                                    update.set(fieldName, clone);
-                                    hasUpdate = true;
-                                }
-                            }
-                        }
+                    fingerprint.reset().putValue(field.getField().getType(), value);
+                    fingerprint.finish();
+                    if (isCaptured(ordinal, fingerprint.high(), fingerprint.low())) {
+                        continue;
+                    }
+                    Object copy = copyValue(value);
+                    if (copy == null) {
+                        // 拷贝失败不记录快照，下次重试
+                        continue;
                     }
+                    capture(ordinal, fingerprint.high(), fingerprint.low());
+                    update.set(field.getName(), copy);
+                    hasUpdate = true;
                 }
-            } catch (IllegalAccessException e) {
+            } catch (RuntimeException e) {
                 log.error("{} {} field value get error, id={}", this.getClass().getName(), field.getName(), id, e);
             }
         }
 
         if (hasUpdate) {
-            updateQueue.offer(update);
+            enqueue(update);
+            if (!followUp.getUpdateObject().isEmpty()) {
+                enqueue(followUp);
+            }
         }
 
         return !updateQueue.isEmpty();
     }
 
-    private List<Field> getAllPersistFields() {
-        return ENTITY_FIELDS_MAP.computeIfAbsent(this.getClass(), clazz -> {
-            List<Field> fields = new ArrayList<>();
-            int modifiers = Modifier.TRANSIENT | Modifier.STATIC;
-            while (clazz != null) {
-                for (Field field : clazz.getDeclaredFields()) {
-                    // skip transient and static field
-                    if ((field.getModifiers() & modifiers) != 0) {
-                        continue;
-                    }
-                    if (field.isAnnotationPresent(org.springframework.data.annotation.Transient.class)) {
-                        continue;
-                    }
-                    fields.add(field);
+    /**
+     * 以当前字段值作为基线记录快照，不产生Update，用于刚从DB加载的实体
+     */
+    public void captureBaseline() {
+        EntityAccessor accessor = EntityAccessor.of(this.getClass());
+        fingerprints = new long[accessor.size() << 1];
+        captured = new boolean[accessor.size()];
+        Fingerprint fingerprint = new Fingerprint();
+        for (EntityField field : accessor.fields()) {
+            try {
+                int ordinal = field.getOrdinal();
+                if (field.isPrimitive()) {
+                    capture(ordinal, field.getBits(this), 0L);
+                    continue;
+                }
+                Object value = field.get(this);
+                if (value instanceof Tracked tracked) {
+                    capture(ordinal, System.identityHashCode(tracked), 0L);
+                    tracked.commit();
+                } else if (value != null) {
+                    fingerprint.reset().putValue(field.getField().getType(), value);
+                    fingerprint.finish();
+                    capture(ordinal, fingerprint.high(), fingerprint.low());
+                }
+            } catch (RuntimeException e) {
+                log.error("{} {} field value get error, id={}", this.getClass().getName(), field.getName(), id, e);
+            }
+        }
+    }
+
+    /**
+     * 先追加到本地日志再入队，保证交给IO线程的Update都已记录
+     */
+    private void enqueue(Update update) {
+        synchronized (updateQueue) {
+            Journal journal = Journal.current();
+            if (journal != null) {
+                long seq = journal.append(this, update, journalHead == 0);
+                if (journalHead == 0) {
+                    journalHead = seq;
+                }
+                if (seq != 0) {
+                    journalTail = seq;
                 }
-                clazz = clazz.getSuperclass();
             }
-            return fields;
-        });
+            offerUpdate(update, journalTail);
+        }
+    }
+
+    /**
+     * 与队尾合并后入队，DB异常期间待写入的Update不会无限增长
+     * <p>
+     * 队尾元素通过pollLast取出，与IO线程的drain不会重复处理同一个元素
+     */
+    private void offerUpdate(Update update, long seq) {
+        Update last = updateQueue.pollLast();
+        if (last == null) {
+            journalSeqs.clear();
+            updateQueue.offerLast(update);
+            journalSeqs.offerLast(seq);
+            return;
+        }
+        long lastSeq = Objects.requireNonNullElse(journalSeqs.pollLast(), 0L);
+        long[] seqs = {Objects.requireNonNullElse(journalSeqs.peekLast(), 0L), lastSeq, seq};
+        List<Integer> completed = new ArrayList<>(2);
+        List<Update> merged = UpdateCoalescer.coalesce(List.of(last, update), completed);
+        for (int i = 0; i < merged.size(); i++) {
+            updateQueue.offerLast(merged.get(i));
+            journalSeqs.offerLast(seqs[completed.get(i) + 1]);
+        }
+    }
+
+    /**
+     * 取出全部待写入的Update并合并，供IO线程一次性发送
+     */
+    public List<Update> drainUpdates() {
+        List<Update> updates = new ArrayList<>();
+        synchronized (updateQueue) {
+            Update update;
+            while ((update = updateQueue.pollFirst()) != null) {
+                updates.add(update);
+            }
+            // 下标0为没有已生效输入时的序号
+            long[] seqs = new long[updates.size() + 1];
+            for (int i = 1; i < seqs.length; i++) {
+                seqs[i] = Objects.requireNonNullElse(journalSeqs.pollFirst(), 0L);
+            }
+            journalSeqs.clear();
+            if (journalInflight == 0) {
+                journalInflight = journalHead;
+            } else if (journalHead != journalInflight) {
+                // 上次取出的尚未确认，更早的序号已覆盖队列中的记录
+                ackJournal(journalHead);
+            }
+            journalHead = 0;
+            List<Integer> completed = new ArrayList<>(updates.size());
+            updates = UpdateCoalescer.coalesce(updates, completed);
+            journalInflightSeqs = new long[updates.size()];
+            for (int i = 0; i < journalInflightSeqs.length; i++) {
+                journalInflightSeqs[i] = seqs[completed.get(i) + 1];
+            }
+            journalInflightTail = journalInflightSeqs.length == 0 ? 0 : journalInflightSeqs[journalInflightSeqs.length - 1];
+            writing |= !updates.isEmpty();
+        }
+        return updates;
+    }
+
+    /**
+     * 写入失败或只发送了一部分时，把未生效的Update放回队首，保持与之后产生的Update的先后顺序
+     *
+     * @param updates drainUpdates结果的末尾部分
+     */
+    public void requeueUpdates(List<Update> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        synchronized (updateQueue) {
+            int sent = Math.max(0, journalInflightSeqs.length - updates.size());
+            for (int i = updates.size() - 1; i >= 0; i--) {
+                updateQueue.offerFirst(updates.get(i));
+                journalSeqs.offerFirst(sent + i < journalInflightSeqs.length ? journalInflightSeqs[sent + i] : 0L);
+            }
+            journalInflightTail = sent == 0 ? 0 : journalInflightSeqs[sent - 1];
+            journalInflightSeqs = Arrays.copyOf(journalInflightSeqs, sent);
+            if (journalInflight != 0 && journalHead != journalInflight) {
+                ackJournal(journalHead);
+                journalHead = journalInflight;
+            }
+            writing = false;
+        }
+    }
+
+    /**
+     * 丢弃全部待写入的Update，如实体已删除
+     */
+    public void discardUpdates() {
+        drainUpdates();
+        writeSucceeded();
     }
 
-    private boolean needCheckJson(Object obj) {
-        // 一定不发生哈希碰撞
-        if (obj instanceof Boolean || obj instanceof Byte || obj instanceof Short || obj instanceof Character || obj instanceof Integer) {
+    private void ackJournal(long seq) {
+        Journal journal = Journal.current();
+        if (seq != 0 && journal != null) {
+            journal.ack(seq);
+        }
+    }
+
+    /**
+     * @return 增加后的引用计数
+     */
+    public int pin() {
+        return pins.incrementAndGet();
+    }
+
+    /**
+     * @return 减少后的引用计数，不会小于0
+     */
+    public int unpin() {
+        return pins.updateAndGet(n -> Math.max(0, n - 1));
+    }
+
+    public boolean isPinned() {
+        return pins.get() > 0;
+    }
+
+    /**
+     * 标记为自上次检测后被访问过
+     *
+     * @return 此前未标记返回true
+     */
+    public boolean touch() {
+        return !touched.get() && touched.compareAndSet(false, true);
+    }
+
+    public void clearTouched() {
+        touched.set(false);
+    }
+
+    /**
+     * 队列中还有Update或已取出的Update尚未确认写入
+     */
+    public boolean hasPendingUpdates() {
+        return writing || !updateQueue.isEmpty();
+    }
+
+    /**
+     * 写入失败退避期间不发送，待写入的Update留在队列中
+     */
+    public boolean isWriteReady(long now) {
+        return now >= nextWriteTime;
+    }
+
+    /**
+     * 记录一次写入失败
+     *
+     * @return 连续失败次数
+     */
+    public int writeFailed(long nextWriteTime) {
+        this.nextWriteTime = nextWriteTime;
+        return ++writeFailures;
+    }
+
+    public void writeSucceeded() {
+        writeFailures = 0;
+        nextWriteTime = 0;
+        long upTo;
+        synchronized (updateQueue) {
+            // 仍有放回队列的Update时，最早序号转交给队列，待其写入后确认
+            if (journalHead != journalInflight) {
+                ackJournal(journalInflight);
+            }
+            journalInflight = 0;
+            upTo = journalInflightTail;
+            journalInflightSeqs = NO_SEQS;
+            journalInflightTail = 0;
+            writing = false;
+        }
+        Journal journal = Journal.current();
+        if (upTo != 0 && journal != null) {
+            journal.appendAck(this, upTo);
+        }
+    }
+
+    /**
+     * 记录字段快照
+     *
+     * @return 与上次快照不同返回true
+     */
+    private boolean capture(int ordinal, long high, long low) {
+        if (isCaptured(ordinal, high, low)) {
             return false;
         }
+        int slot = ordinal << 1;
+        fingerprints[slot] = high;
+        fingerprints[slot + 1] = low;
+        captured[ordinal] = true;
         return true;
     }
 
-    private boolean isImmutableType(Object obj) {
-        if (obj instanceof Boolean || obj instanceof Byte || obj instanceof Short || obj instanceof Character ||
-                obj instanceof Integer || obj instanceof Long || obj instanceof Float || obj instanceof Double) {
-            return true;
+    private boolean isCaptured(int ordinal, long high, long low) {
+        int slot = ordinal << 1;
+        return captured[ordinal] && fingerprints[slot] == high && fingerprints[slot + 1] == low;
+    }
+
+    private boolean checkPrimitiveField(EntityField field, Update update) {
+        if (!capture(field.getOrdinal(), field.getBits(this), 0L)) {
+            return false;
         }
+        // 仅在确实变化时装箱写入Update
+        update.set(field.getName(), field.get(this));
+        return true;
+    }
 
-        if (obj instanceof String || obj instanceof Enum) {
-            return true;
+    /**
+     * 可追踪集合只看变更日志，不计算指纹；以实例的identityHashCode判断字段是否被整体替换
+     * <p>
+     * 有基线时按集合类型生成路径级操作符，只传输变化的部分，无法增量描述时整体$set
+     */
+    private boolean checkTrackedField(EntityField field, Tracked tracked, Update update, Update followUp) {
+        String fieldName = field.getName();
+        boolean sameInstance = !capture(field.getOrdinal(), System.identityHashCode(tracked), 0L);
+        if (sameInstance && !tracked.isChanged()) {
+            return false;
+        }
+        if (!sameInstance || tracked.isReset() || !applyTrackedDelta(fieldName, tracked, update, followUp)) {
+            update.set(fieldName, tracked.snapshot());
         }
+        tracked.commit();
+        return true;
+    }
 
-        if (obj instanceof java.math.BigInteger || obj instanceof java.math.BigDecimal) {
+    private boolean applyTrackedDelta(String fieldName, Tracked tracked, Update update, Update followUp) {
+        if (tracked instanceof TrackedSet<?> set) {
+            if (!set.removed().isEmpty()) {
+                update.pullAll(fieldName, set.removed().toArray());
+            }
+            if (!set.added().isEmpty()) {
+                // 同一路径不能同时$pull和$addToSet，有删除时新增放到下一个Update
+                Update target = set.removed().isEmpty() ? update : followUp;
+                target.addToSet(fieldName).each(set.added().toArray());
+            }
             return true;
         }
-
-        if (obj instanceof java.time.LocalDate ||
-                obj instanceof java.time.LocalDateTime ||
-                obj instanceof java.time.LocalTime ||
-                obj instanceof java.time.Instant ||
-                obj instanceof java.time.ZonedDateTime) {
+        if (tracked instanceof TrackedList<?> list) {
+            Update.PushOperatorBuilder push = update.push(fieldName);
+            if (list.capacity() > 0) {
+                push.slice(-list.capacity());
+            }
+            push.each(list.appended().toArray());
             return true;
         }
-
-        if (obj instanceof java.util.UUID) {
+        if (tracked instanceof TrackedMap<?, ?> map) {
+            for (Object key : map.changedKeys()) {
+                if (!isValidPathKey(key)) {
+                    return false;
+                }
+            }
+            for (Object key : map.removedKeys()) {
+                if (!isValidPathKey(key)) {
+                    return false;
+                }
+            }
+            for (Object key : map.changedKeys()) {
+                update.set(fieldName + "." + key, copyValue(map.get(key)));
+            }
+            for (Object key : map.removedKeys()) {
+                update.unset(fieldName + "." + key);
+            }
             return true;
         }
-
         return false;
     }
+
+    private boolean isValidPathKey(Object key) {
+        if (key == null) {
+            return false;
+        }
+        String path = key.toString();
+        return !path.isEmpty() && path.indexOf('.') < 0 && path.charAt(0) != '$';
+    }
+
+    /**
+     * 写入Update的值需要与实体隔离，避免IO线程序列化时实体被逻辑线程修改
+     */
+    private Object copyValue(Object value) {
+        return ObjectCloner.copy(value);
+    }
 }
@@ -0,0 +1,50 @@
+package com.game.orm.entity;
+
+import java.lang.annotation.*;
+
+/**
+ * 实体类的缓存策略，可被application.yml中的orm.cache.policies.[类名]覆盖
+ */
+@Documented
+@Inherited
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CachePolicy {
+
+    /**
+     * 最大缓存数量，maximumWeight大于0时不生效
+     */
+    long maximumSize() default 3000;
+
+    /**
+     * 按估算的实体大小(字节)限制缓存总量，0表示不按权重淘汰
+     */
+    long maximumWeight() default 0;
+
+    long expireAfterAccessSeconds() default 180;
+
+    /**
+     * 写入后多久从DB刷新，0表示不刷新；刷新会丢弃未写入的修改，只适用于只读实体
+     */
+    long refreshAfterWriteSeconds() default 0;
+
+    /**
+     * 被访问实体的检测写入周期，0表示使用orm.flush.interval-seconds
+     */
+    int flushIntervalSeconds() default 0;
+
+    /**
+     * 启动预热的最大数量，0表示不预热
+     */
+    long warmupLimit() default 0;
+
+    /**
+     * 预热查询条件(Mongo JSON)，为空时不限制
+     */
+    String warmupFilter() default "";
+
+    /**
+     * 预热排序(Mongo JSON)，如 {"lastLoginTime": -1} 取最近活跃的实体
+     */
+    String warmupSort() default "";
+}
@@ -0,0 +1,106 @@
+package com.game.orm.entity;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个实体类一份的字段访问器，首次使用时扫描一次持久化字段并生成 {@link EntityField}，按字段序号访问
+ */
+public final class EntityAccessor {
+
+    private static final Map<Class<?>, EntityAccessor> ACCESSOR_MAP = new ConcurrentHashMap<>();
+
+    private final Class<?> entityClazz;
+    private final EntityField[] fields;
+    private final List<EntityField> fieldList;
+    /**
+     * 已适配为 ()Object 的无参构造
+     */
+    private final MethodHandle constructor;
+
+    private EntityAccessor(Class<?> entityClazz) {
+        this.entityClazz = entityClazz;
+        List<EntityField> result = new ArrayList<>();
+        int modifiers = Modifier.TRANSIENT | Modifier.STATIC;
+        Class<?> clazz = entityClazz;
+        while (clazz != null) {
+            for (Field field : clazz.getDeclaredFields()) {
+                // skip transient and static field
+                if ((field.getModifiers() & modifiers) != 0) {
+                    continue;
+                }
+                if (field.isAnnotationPresent(Transient.class)) {
+                    continue;
+                }
+                // 主键不参与更新检测
+                if (field.isAnnotationPresent(Id.class) || "id".equals(field.getName())) {
+                    continue;
+                }
+                result.add(new EntityField(result.size(), field));
+            }
+            clazz = clazz.getSuperclass();
+        }
+        this.fields = result.toArray(new EntityField[0]);
+        this.fieldList = Collections.unmodifiableList(result);
+        this.constructor = createConstructor(entityClazz);
+    }
+
+    private static MethodHandle createConstructor(Class<?> entityClazz) {
+        if (Modifier.isAbstract(entityClazz.getModifiers())) {
+            return null;
+        }
+        try {
+            Constructor<?> constructor = entityClazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 通过缓存的无参构造创建实例
+     */
+    public <E> E newInstance() {
+        if (constructor == null) {
+            throw new IllegalStateException(entityClazz.getName() + " has no accessible no-arg constructor");
+        }
+        try {
+            return (E) (Object) constructor.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException(entityClazz.getName() + " new instance error", t);
+        }
+    }
+
+    public static EntityAccessor of(Class<?> entityClazz) {
+        return ACCESSOR_MAP.computeIfAbsent(entityClazz, EntityAccessor::new);
+    }
+
+    public Class<?> entityClazz() {
+        return entityClazz;
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    public EntityField field(int ordinal) {
+        return fields[ordinal];
+    }
+
+    public List<EntityField> fields() {
+        return fieldList;
+    }
+}
@@ -0,0 +1,133 @@
+package com.game.orm.entity;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * 实体持久化字段的访问器，初始化时反射一次生成类型化的MethodHandle，之后读取字段不再走反射，基本类型也不装箱
+ */
+@Slf4j
+public final class EntityField {
+
+    public enum Kind {
+        BOOLEAN, BYTE, SHORT, CHAR, INT, LONG, FLOAT, DOUBLE, OBJECT
+    }
+
+    @Getter
+    private final int ordinal;
+    @Getter
+    private final String name;
+    @Getter
+    private final Field field;
+    @Getter
+    private final Kind kind;
+    /**
+     * 已适配为 (Object)T 的getter，生成失败时为null并退回反射读取
+     */
+    private final MethodHandle getter;
+
+    EntityField(int ordinal, Field field) {
+        this.ordinal = ordinal;
+        this.name = field.getName();
+        this.field = field;
+        this.kind = kindOf(field.getType());
+        this.field.setAccessible(true);
+        this.getter = createGetter(field, kind);
+    }
+
+    private static Kind kindOf(Class<?> type) {
+        if (type == boolean.class) return Kind.BOOLEAN;
+        if (type == byte.class) return Kind.BYTE;
+        if (type == short.class) return Kind.SHORT;
+        if (type == char.class) return Kind.CHAR;
+        if (type == int.class) return Kind.INT;
+        if (type == long.class) return Kind.LONG;
+        if (type == float.class) return Kind.FLOAT;
+        if (type == double.class) return Kind.DOUBLE;
+        return Kind.OBJECT;
+    }
+
+    private static MethodHandle createGetter(Field field, Kind kind) {
+        try {
+            MethodHandle handle = MethodHandles.lookup().unreflectGetter(field);
+            Class<?> returnType = kind == Kind.OBJECT ? Object.class : field.getType();
+            return handle.asType(MethodType.methodType(returnType, Object.class));
+        } catch (IllegalAccessException | RuntimeException e) {
+            log.warn("{}.{} getter generate failed, fallback to reflection", field.getDeclaringClass().getName(), field.getName(), e);
+            return null;
+        }
+    }
+
+    public boolean isPrimitive() {
+        return kind != Kind.OBJECT;
+    }
+
+    /**
+     * 读取引用类型字段，基本类型字段会装箱，仅在需要写入Update时调用
+     */
+    public Object get(Object entity) {
+        try {
+            if (getter == null) {
+                return field.get(entity);
+            }
+            return switch (kind) {
+                case BOOLEAN -> (boolean) getter.invokeExact(entity);
+                case BYTE -> (byte) getter.invokeExact(entity);
+                case SHORT -> (short) getter.invokeExact(entity);
+                case CHAR -> (char) getter.invokeExact(entity);
+                case INT -> (int) getter.invokeExact(entity);
+                case LONG -> (long) getter.invokeExact(entity);
+                case FLOAT -> (float) getter.invokeExact(entity);
+                case DOUBLE -> (double) getter.invokeExact(entity);
+                case OBJECT -> (Object) getter.invokeExact(entity);
+            };
+        } catch (Throwable t) {
+            throw new IllegalStateException(field.getDeclaringClass().getName() + "." + name + " get error", t);
+        }
+    }
+
+    /**
+     * 以原始位读取基本类型字段，不装箱
+     */
+    public long getBits(Object entity) {
+        try {
+            if (getter == null) {
+                return reflectBits(entity);
+            }
+            return switch (kind) {
+                case BOOLEAN -> (boolean) getter.invokeExact(entity) ? 1L : 0L;
+                case BYTE -> (byte) getter.invokeExact(entity);
+                case SHORT -> (short) getter.invokeExact(entity);
+                case CHAR -> (char) getter.invokeExact(entity);
+                case INT -> (int) getter.invokeExact(entity);
+                case LONG -> (long) getter.invokeExact(entity);
+                case FLOAT -> Float.floatToRawIntBits((float) getter.invokeExact(entity));
+                case DOUBLE -> Double.doubleToRawLongBits((double) getter.invokeExact(entity));
+                case OBJECT -> throw new IllegalStateException(name + " is not primitive");
+            };
+        } catch (IllegalStateException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(field.getDeclaringClass().getName() + "." + name + " get error", t);
+        }
+    }
+
+    private long reflectBits(Object entity) throws IllegalAccessException {
+        return switch (kind) {
+            case BOOLEAN -> field.getBoolean(entity) ? 1L : 0L;
+            case BYTE -> field.getByte(entity);
+            case SHORT -> field.getShort(entity);
+            case CHAR -> field.getChar(entity);
+            case INT -> field.getInt(entity);
+            case LONG -> field.getLong(entity);
+            case FLOAT -> Float.floatToRawIntBits(field.getFloat(entity));
+            case DOUBLE -> Double.doubleToRawLongBits(field.getDouble(entity));
+            case OBJECT -> throw new IllegalStateException(name + " is not primitive");
+        };
+    }
+}
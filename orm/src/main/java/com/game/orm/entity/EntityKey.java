@@ -0,0 +1,33 @@
+package com.game.orm.entity;
+
+/**
+ * 按实例区分实体，同一主键的两个实例(如刷新替换前后、淘汰后重新加载)不是同一个键，合并时不会互相覆盖；
+ * 实体自身的equals可能依赖可变字段，不适合作为Map的键
+ */
+public final class EntityKey {
+
+    private final AbstractEntity<?> entity;
+
+    private EntityKey(AbstractEntity<?> entity) {
+        this.entity = entity;
+    }
+
+    public static EntityKey of(AbstractEntity<?> entity) {
+        return new EntityKey(entity);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof EntityKey other && other.entity == entity;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(entity);
+    }
+
+    @Override
+    public String toString() {
+        return entity.getClass().getSimpleName() + "#" + entity.id();
+    }
+}
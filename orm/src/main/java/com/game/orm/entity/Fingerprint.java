@@ -0,0 +1,408 @@
+package com.game.orm.entity;
+
+import org.springframework.data.annotation.Transient;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.*;
+import java.util.*;
+
+/**
+ * 字段值的128位指纹，直接遍历对象按规范化的二进制形式流式计算(MurmurHash3 x64_128)，不生成中间字符串
+ * <p>
+ * Set和Map按元素指纹求和合并，与迭代顺序无关；其余集合、数组和POJO字段按顺序计算。
+ * 未向本模块开放的类(如JDK的Duration、AtomicInteger)无法反射读取字段，以toString和hashCode计算
+ */
+final class Fingerprint {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final int MAX_DEPTH = 64;
+
+    private static final long TAG_NULL = 0x01;
+    private static final long TAG_BOOLEAN = 0x02;
+    private static final long TAG_INTEGRAL = 0x03;
+    private static final long TAG_FLOAT = 0x04;
+    private static final long TAG_DOUBLE = 0x05;
+    private static final long TAG_CHAR = 0x06;
+    private static final long TAG_STRING = 0x07;
+    private static final long TAG_ENUM = 0x08;
+    private static final long TAG_BIG_NUMBER = 0x09;
+    private static final long TAG_UUID = 0x0A;
+    private static final long TAG_TIME = 0x0B;
+    private static final long TAG_ARRAY = 0x0C;
+    private static final long TAG_LIST = 0x0D;
+    private static final long TAG_SET = 0x0E;
+    private static final long TAG_MAP = 0x0F;
+    private static final long TAG_OBJECT = 0x10;
+    private static final long TAG_OPAQUE = 0x11;
+    private static final long TAG_OPTIONAL = 0x12;
+    private static final long TAG_TYPE = 0x13;
+
+    /**
+     * 类名的哈希，声明类型不是final时混入运行时类型
+     */
+    private static final ClassValue<Long> TYPE_IDS = new ClassValue<>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            Fingerprint fingerprint = new Fingerprint();
+            fingerprint.putString(TAG_TYPE, type.getName());
+            return fingerprint.finish().high();
+        }
+    };
+
+    /**
+     * POJO的字段，包含主键，不包含static、transient字段；类所在的包未开放反射时为null
+     */
+    private static final ClassValue<EntityField[]> OBJECT_FIELDS = new ClassValue<>() {
+        @Override
+        protected EntityField[] computeValue(Class<?> type) {
+            List<EntityField> fields = new ArrayList<>();
+            int modifiers = Modifier.TRANSIENT | Modifier.STATIC;
+            for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+                if (!clazz.getModule().isOpen(clazz.getPackageName(), Fingerprint.class.getModule())) {
+                    return null;
+                }
+                for (Field field : clazz.getDeclaredFields()) {
+                    if ((field.getModifiers() & modifiers) != 0 || field.isAnnotationPresent(Transient.class)) {
+                        continue;
+                    }
+                    try {
+                        fields.add(new EntityField(fields.size(), field));
+                    } catch (RuntimeException e) {
+                        // InaccessibleObjectException等，整个类退回toString
+                        return null;
+                    }
+                }
+            }
+            return fields.toArray(new EntityField[0]);
+        }
+    };
+
+    private long h1;
+    private long h2;
+    private long length;
+    private int depth;
+
+    Fingerprint reset() {
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+        depth = 0;
+        return this;
+    }
+
+    /**
+     * 结束计算，结果通过 {@link #high()} {@link #low()} 读取
+     */
+    Fingerprint finish() {
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return this;
+    }
+
+    long high() {
+        return h1;
+    }
+
+    long low() {
+        return h2;
+    }
+
+    void putLong(long k) {
+        long k1 = k * C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        long k2 = k * C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+
+        length += 8;
+    }
+
+    /**
+     * 声明类型不是final时同一个值可能是不同的运行时类型(Integer/Long、子类POJO)，写入DB的结果不同，需要混入运行时类型；
+     * 集合、Map写入DB的形式与具体实现类无关，不混入
+     */
+    void putValue(Class<?> declaredType, Object value) {
+        if (value != null && !Modifier.isFinal(declaredType.getModifiers())
+                && !(value instanceof Collection<?>) && !(value instanceof Map<?, ?>)) {
+            putLong(TAG_TYPE);
+            putLong(TYPE_IDS.get(value.getClass()));
+        }
+        putValue(value);
+    }
+
+    void putValue(Object value) {
+        if (value == null) {
+            putLong(TAG_NULL);
+            return;
+        }
+        switch (value) {
+            case Boolean b -> {
+                putLong(TAG_BOOLEAN);
+                putLong(b ? 1 : 0);
+            }
+            case Byte n -> putIntegral(n);
+            case Short n -> putIntegral(n);
+            case Integer n -> putIntegral(n);
+            case Long n -> putIntegral(n);
+            case Float f -> {
+                putLong(TAG_FLOAT);
+                putLong(Float.floatToIntBits(f));
+            }
+            case Double d -> {
+                putLong(TAG_DOUBLE);
+                putLong(Double.doubleToLongBits(d));
+            }
+            case Character c -> {
+                putLong(TAG_CHAR);
+                putLong(c);
+            }
+            case String s -> putString(TAG_STRING, s);
+            case Enum<?> e -> putString(TAG_ENUM, e.name());
+            case BigDecimal d -> {
+                putLong(TAG_BIG_NUMBER);
+                putLong(d.scale());
+                putBytes(d.unscaledValue().toByteArray());
+            }
+            case BigInteger i -> {
+                putLong(TAG_BIG_NUMBER);
+                putBytes(i.toByteArray());
+            }
+            case UUID u -> {
+                putLong(TAG_UUID);
+                putLong(u.getMostSignificantBits());
+                putLong(u.getLeastSignificantBits());
+            }
+            case Date d -> putTime(d.getTime(), 0);
+            case Instant i -> putTime(i.getEpochSecond(), i.getNano());
+            case LocalDate d -> putTime(d.toEpochDay(), 0);
+            case LocalTime t -> putTime(0, t.toNanoOfDay());
+            case LocalDateTime t -> putTime(t.toLocalDate().toEpochDay(), t.toLocalTime().toNanoOfDay());
+            case ZonedDateTime t -> {
+                putTime(t.toEpochSecond(), t.getNano());
+                putString(TAG_STRING, t.getZone().getId());
+            }
+            case Optional<?> o -> {
+                putLong(TAG_OPTIONAL);
+                putValue(Object.class, o.orElse(null));
+            }
+            case Map<?, ?> map -> putMap(map);
+            case Set<?> set -> putSet(set);
+            case Collection<?> collection -> putCollection(collection);
+            default -> {
+                if (value.getClass().isArray()) {
+                    putArray(value);
+                } else {
+                    putObject(value);
+                }
+            }
+        }
+    }
+
+    private void putIntegral(Number n) {
+        putLong(TAG_INTEGRAL);
+        putLong(n.longValue());
+    }
+
+    private void putTime(long high, long low) {
+        putLong(TAG_TIME);
+        putLong(high);
+        putLong(low);
+    }
+
+    private void putString(long tag, String s) {
+        putLong(tag);
+        int len = s.length();
+        putLong(len);
+        int i = 0;
+        for (; i + 4 <= len; i += 4) {
+            putLong((long) s.charAt(i) | (long) s.charAt(i + 1) << 16 | (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48);
+        }
+        if (i < len) {
+            long k = 0;
+            for (int shift = 0; i < len; i++, shift += 16) {
+                k |= (long) s.charAt(i) << shift;
+            }
+            putLong(k);
+        }
+    }
+
+    private void putBytes(byte[] bytes) {
+        putLong(bytes.length);
+        long k = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            k = k << 8 | (bytes[i] & 0xFF);
+            if ((i & 7) == 7) {
+                putLong(k);
+                k = 0;
+            }
+        }
+        if ((bytes.length & 7) != 0) {
+            putLong(k);
+        }
+    }
+
+    private void putCollection(Collection<?> collection) {
+        enter();
+        putLong(TAG_LIST);
+        putLong(collection.size());
+        for (Object element : collection) {
+            putValue(Object.class, element);
+        }
+        depth--;
+    }
+
+    private void putSet(Set<?> set) {
+        enter();
+        long sum1 = 0;
+        long sum2 = 0;
+        for (Object element : set) {
+            long s1 = h1, s2 = h2, len = length;
+            h1 = 0;
+            h2 = 0;
+            length = 0;
+            putValue(Object.class, element);
+            finish();
+            sum1 += h1;
+            sum2 += h2;
+            h1 = s1;
+            h2 = s2;
+            length = len;
+        }
+        putLong(TAG_SET);
+        putLong(set.size());
+        putLong(sum1);
+        putLong(sum2);
+        depth--;
+    }
+
+    private void putMap(Map<?, ?> map) {
+        enter();
+        long sum1 = 0;
+        long sum2 = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            long s1 = h1, s2 = h2, len = length;
+            h1 = 0;
+            h2 = 0;
+            length = 0;
+            putValue(Object.class, entry.getKey());
+            putValue(Object.class, entry.getValue());
+            finish();
+            sum1 += h1;
+            sum2 += h2;
+            h1 = s1;
+            h2 = s2;
+            length = len;
+        }
+        putLong(TAG_MAP);
+        putLong(map.size());
+        putLong(sum1);
+        putLong(sum2);
+        depth--;
+    }
+
+    private void putArray(Object array) {
+        enter();
+        putLong(TAG_ARRAY);
+        switch (array) {
+            case boolean[] a -> {
+                putLong(a.length);
+                for (boolean v : a) putLong(v ? 1 : 0);
+            }
+            case byte[] a -> putBytes(a);
+            case short[] a -> {
+                putLong(a.length);
+                for (short v : a) putLong(v);
+            }
+            case char[] a -> {
+                putLong(a.length);
+                for (char v : a) putLong(v);
+            }
+            case int[] a -> {
+                putLong(a.length);
+                for (int v : a) putLong(v);
+            }
+            case long[] a -> {
+                putLong(a.length);
+                for (long v : a) putLong(v);
+            }
+            case float[] a -> {
+                putLong(a.length);
+                for (float v : a) putLong(Float.floatToIntBits(v));
+            }
+            case double[] a -> {
+                putLong(a.length);
+                for (double v : a) putLong(Double.doubleToLongBits(v));
+            }
+            case Object[] a -> {
+                putLong(a.length);
+                Class<?> componentType = a.getClass().getComponentType();
+                for (Object v : a) putValue(componentType, v);
+            }
+            default -> throw new IllegalStateException("unsupported array " + array.getClass());
+        }
+        depth--;
+    }
+
+    private void putObject(Object value) {
+        EntityField[] fields = OBJECT_FIELDS.get(value.getClass());
+        if (fields == null) {
+            putOpaque(value);
+            return;
+        }
+        enter();
+        putLong(TAG_OBJECT);
+        putLong(fields.length);
+        for (EntityField field : fields) {
+            if (field.isPrimitive()) {
+                putLong(field.getBits(value));
+            } else {
+                putValue(field.getField().getType(), field.get(value));
+            }
+        }
+        depth--;
+    }
+
+    /**
+     * 不可反射的类只能依赖其自身的toString和hashCode，JDK值类型(时间、Duration、原子类等)的toString包含完整的值
+     */
+    private void putOpaque(Object value) {
+        putString(TAG_OPAQUE, value.getClass().getName());
+        putString(TAG_STRING, value.toString());
+        putLong(value.hashCode());
+    }
+
+    private void enter() {
+        if (++depth > MAX_DEPTH) {
+            throw new IllegalStateException("fingerprint depth exceed " + MAX_DEPTH + ", circular reference?");
+        }
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,100 @@
+package com.game.orm.entity;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 估算对象占用的堆内存(字节)，用于按权重淘汰缓存，只求量级接近，不追求精确
+ */
+public final class SizeEstimator {
+
+    private static final int MAX_DEPTH = 16;
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int ENTRY = 32;
+
+    /**
+     * 对象的所有实例字段，包含主键和transient字段
+     */
+    private static final ClassValue<EntityField[]> FIELDS = new ClassValue<>() {
+        @Override
+        protected EntityField[] computeValue(Class<?> type) {
+            List<EntityField> fields = new ArrayList<>();
+            for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+                for (Field field : clazz.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        fields.add(new EntityField(fields.size(), field));
+                    }
+                }
+            }
+            return fields.toArray(new EntityField[0]);
+        }
+    };
+
+    private SizeEstimator() {
+    }
+
+    public static long estimate(Object value) {
+        try {
+            return estimate(value, 0);
+        } catch (RuntimeException e) {
+            return OBJECT_HEADER;
+        }
+    }
+
+    private static long estimate(Object value, int depth) {
+        if (value == null) {
+            return 0;
+        }
+        if (depth > MAX_DEPTH) {
+            return OBJECT_HEADER;
+        }
+        return switch (value) {
+            case String s -> OBJECT_HEADER + 24 + s.length();
+            case Number _, Boolean _, Character _, Enum<?> _ -> OBJECT_HEADER;
+            case Collection<?> collection -> {
+                long size = OBJECT_HEADER + 24;
+                for (Object element : collection) {
+                    size += ENTRY + estimate(element, depth + 1);
+                }
+                yield size;
+            }
+            case Map<?, ?> map -> {
+                long size = OBJECT_HEADER + 48;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    size += ENTRY + estimate(entry.getKey(), depth + 1) + estimate(entry.getValue(), depth + 1);
+                }
+                yield size;
+            }
+            case byte[] a -> OBJECT_HEADER + a.length;
+            case boolean[] a -> OBJECT_HEADER + a.length;
+            case short[] a -> OBJECT_HEADER + 2L * a.length;
+            case char[] a -> OBJECT_HEADER + 2L * a.length;
+            case int[] a -> OBJECT_HEADER + 4L * a.length;
+            case float[] a -> OBJECT_HEADER + 4L * a.length;
+            case long[] a -> OBJECT_HEADER + 8L * a.length;
+            case double[] a -> OBJECT_HEADER + 8L * a.length;
+            case Object[] a -> {
+                long size = OBJECT_HEADER + (long) REFERENCE * a.length;
+                for (Object element : a) {
+                    size += estimate(element, depth + 1);
+                }
+                yield size;
+            }
+            default -> {
+                if (value.getClass().getName().startsWith("java.")) {
+                    yield OBJECT_HEADER + 16;
+                }
+                long size = OBJECT_HEADER;
+                for (EntityField field : FIELDS.get(value.getClass())) {
+                    size += field.isPrimitive() ? 8 : REFERENCE + estimate(field.get(value), depth + 1);
+                }
+                yield size;
+            }
+        };
+    }
+}
@@ -0,0 +1,259 @@
+package com.game.orm.entity;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.*;
+
+/**
+ * 合并同一实体的多个待写入Update
+ * <p>
+ * 同一路径的$set/$unset以最新为准，$addToSet、$pullAll、$push与同类操作或此前的整体$set合并。
+ * Mongo不允许一个Update里对同一路径(或父子路径)使用多个操作符，无法合并时从冲突处开始新的Update，
+ * 因此结果仍可能多于一个，但按原顺序依次执行与逐个执行等价
+ */
+public final class UpdateCoalescer {
+
+    private static final String SET = "$set";
+    private static final String UNSET = "$unset";
+    private static final String ADD_TO_SET = "$addToSet";
+    private static final String PULL_ALL = "$pullAll";
+    private static final String PUSH = "$push";
+    private static final String EACH = "$each";
+    private static final String SLICE = "$slice";
+
+    private UpdateCoalescer() {
+    }
+
+    public static List<Update> coalesce(List<Update> updates) {
+        return coalesce(updates, null);
+    }
+
+    /**
+     * @param completed 不为null时按结果顺序写入：执行完该Update后已全部生效的最后一个输入的下标，没有为-1。
+     *                  一个输入的操作被拆到两个结果中时，执行完后一个才算生效
+     */
+    static List<Update> coalesce(List<Update> updates, List<Integer> completed) {
+        if (updates.size() <= 1) {
+            if (completed != null && !updates.isEmpty()) {
+                completed.add(0);
+            }
+            return updates;
+        }
+        List<Segment> segments = new ArrayList<>();
+        Segment current = new Segment();
+        segments.add(current);
+        for (int i = 0; i < updates.size(); i++) {
+            Update update = updates.get(i);
+            for (Map.Entry<String, Object> operator : update.getUpdateObject().entrySet()) {
+                if (!(operator.getValue() instanceof Document fields)) {
+                    continue;
+                }
+                for (Map.Entry<String, Object> field : fields.entrySet()) {
+                    Op op = Op.of(operator.getKey(), field.getValue());
+                    if (!current.merge(field.getKey(), op)) {
+                        current.completed = i - 1;
+                        current = new Segment();
+                        segments.add(current);
+                        current.merge(field.getKey(), op);
+                    }
+                }
+            }
+        }
+        current.completed = updates.size() - 1;
+        List<Update> result = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            if (!segment.ops.isEmpty()) {
+                result.add(segment.toUpdate());
+                if (completed != null) {
+                    completed.add(segment.completed);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 单个路径上的操作，集合类操作符的元素展开为List便于合并
+     */
+    private record Op(String operator, Object value, List<Object> elements, Integer slice) {
+
+        static Op of(String operator, Object value) {
+            return switch (operator) {
+                case ADD_TO_SET, PUSH -> {
+                    List<Object> elements = null;
+                    Integer slice = null;
+                    if (value instanceof Update.Modifiers modifiers) {
+                        for (Update.Modifier modifier : modifiers.getModifiers()) {
+                            if (EACH.equals(modifier.getKey())) {
+                                elements = toList(modifier.getValue());
+                            } else if (SLICE.equals(modifier.getKey()) && modifier.getValue() instanceof Integer n) {
+                                slice = n;
+                            } else {
+                                // 其他修饰符($sort、$position)不参与合并
+                                yield new Op(operator, value, null, null);
+                            }
+                        }
+                    } else if (value instanceof Update.Modifier modifier && EACH.equals(modifier.getKey())) {
+                        elements = toList(modifier.getValue());
+                    } else {
+                        elements = new ArrayList<>(Collections.singletonList(value));
+                    }
+                    yield new Op(operator, value, elements, slice);
+                }
+                case PULL_ALL -> new Op(operator, value, toList(value), null);
+                default -> new Op(operator, value, null, null);
+            };
+        }
+
+        boolean mergeable() {
+            return elements != null;
+        }
+    }
+
+    private static final class Segment {
+
+        private final LinkedHashMap<String, Op> ops = new LinkedHashMap<>();
+        private int completed;
+
+        /**
+         * @return 与当前段冲突无法合并时返回false
+         */
+        boolean merge(String key, Op op) {
+            String prefix = key + ".";
+            for (String existing : ops.keySet()) {
+                // 已有父路径上的操作，新的子路径操作无法合并
+                if (key.startsWith(existing + ".")) {
+                    return false;
+                }
+            }
+            Op old = ops.get(key);
+            if (SET.equals(op.operator) || UNSET.equals(op.operator)) {
+                ops.keySet().removeIf(existing -> existing.startsWith(prefix));
+                ops.remove(key);
+                ops.put(key, op);
+                return true;
+            }
+            boolean hasChild = ops.keySet().stream().anyMatch(existing -> existing.startsWith(prefix));
+            if (hasChild) {
+                return false;
+            }
+            if (old == null) {
+                ops.put(key, op);
+                return true;
+            }
+            Op merged = mergeOp(old, op);
+            if (merged == null) {
+                return false;
+            }
+            ops.put(key, merged);
+            return true;
+        }
+
+        private Op mergeOp(Op old, Op op) {
+            if (!op.mergeable()) {
+                return null;
+            }
+            if (SET.equals(old.operator) && old.value instanceof Collection<?> collection) {
+                // 整体$set之后的增量直接作用在$set的值上
+                return switch (op.operator) {
+                    case ADD_TO_SET -> {
+                        Collection<Object> value = collection instanceof Set ? new LinkedHashSet<>(collection) : new ArrayList<>(collection);
+                        Set<Object> exists = new HashSet<>(collection);
+                        for (Object element : op.elements) {
+                            if (exists.add(element)) {
+                                value.add(element);
+                            }
+                        }
+                        yield new Op(SET, value, null, null);
+                    }
+                    case PULL_ALL -> {
+                        Collection<Object> value = collection instanceof Set ? new LinkedHashSet<>(collection) : new ArrayList<>(collection);
+                        Set<Object> removed = new HashSet<>(op.elements);
+                        value.removeIf(removed::contains);
+                        yield new Op(SET, value, null, null);
+                    }
+                    case PUSH -> {
+                        List<Object> value = new ArrayList<>(collection);
+                        value.addAll(op.elements);
+                        if (op.slice != null) {
+                            value = applySlice(value, op.slice);
+                        }
+                        yield new Op(SET, value, null, null);
+                    }
+                    default -> null;
+                };
+            }
+            if (!old.operator.equals(op.operator) || !old.mergeable()) {
+                return null;
+            }
+            return switch (op.operator) {
+                case ADD_TO_SET, PULL_ALL -> {
+                    LinkedHashSet<Object> elements = new LinkedHashSet<>(old.elements);
+                    elements.addAll(op.elements);
+                    yield new Op(op.operator, null, new ArrayList<>(elements), null);
+                }
+                case PUSH -> {
+                    // 相同$slice时，先后两次追加截断等价于一次追加后截断
+                    if (!Objects.equals(old.slice, op.slice)) {
+                        yield null;
+                    }
+                    List<Object> elements = new ArrayList<>(old.elements);
+                    elements.addAll(op.elements);
+                    yield new Op(PUSH, null, elements, op.slice);
+                }
+                default -> null;
+            };
+        }
+
+        Update toUpdate() {
+            SegmentUpdate update = new SegmentUpdate();
+            ops.forEach((key, op) -> {
+                if (!op.mergeable()) {
+                    update.add(op.operator, key, op.value);
+                    return;
+                }
+                switch (op.operator) {
+                    case ADD_TO_SET -> update.addToSet(key).each(op.elements.toArray());
+                    case PULL_ALL -> update.pullAll(key, op.elements.toArray());
+                    case PUSH -> {
+                        Update.PushOperatorBuilder push = update.push(key);
+                        if (op.slice != null) {
+                            push.slice(op.slice);
+                        }
+                        push.each(op.elements.toArray());
+                    }
+                    default -> update.add(op.operator, key, op.value);
+                }
+            });
+            return update;
+        }
+    }
+
+    /**
+     * 用于原样写回无法解析的操作符
+     */
+    private static final class SegmentUpdate extends Update {
+
+        void add(String operator, String key, Object value) {
+            addMultiFieldOperation(operator, key, value);
+        }
+    }
+
+    private static List<Object> toList(Object value) {
+        if (value instanceof Object[] array) {
+            return new ArrayList<>(Arrays.asList(array));
+        }
+        if (value instanceof Collection<?> collection) {
+            return new ArrayList<>(collection);
+        }
+        return new ArrayList<>(Collections.singletonList(value));
+    }
+
+    private static List<Object> applySlice(List<Object> list, int slice) {
+        if (slice >= 0) {
+            return new ArrayList<>(list.subList(0, Math.min(slice, list.size())));
+        }
+        return new ArrayList<>(list.subList(Math.max(0, list.size() + slice), list.size()));
+    }
+}
@@ -0,0 +1,572 @@
+package com.game.orm.journal;
+
+import com.game.orm.base.Container;
+import com.game.orm.config.OrmProperties;
+import com.game.orm.collection.Tracked;
+import com.game.orm.entity.AbstractEntity;
+import com.game.orm.entity.EntityAccessor;
+import com.game.orm.entity.EntityField;
+import com.mongodb.MongoClientSettings;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * 本地预写日志，逻辑线程计算出Update后先追加到日志，DB确认写入后推进检查点，启动时重放检查点之后的记录
+ * <p>
+ * 日志按段存放在内存映射文件中，追加只是一次内存拷贝；刷盘由后台线程按间隔合并执行(group commit)，
+ * 崩溃时最多丢失一个刷盘间隔内的记录。下一个段由刷盘线程提前创建，写满时直接切换，写满的段也交给刷盘线程刷盘，
+ * 追加时不会在锁内等待文件操作。
+ * 每个实体只登记最早一条未确认记录的序号，检查点取所有实体中的最小值，因此检查点之后会有其他实体已写入的记录。
+ * 实体写入成功后追加一条确认记录，重放时跳过已确认的记录；$push等重复执行结果会变化的操作记录为字段写入时的完整值，
+ * 即使重放了已写入的记录也只是按顺序重新覆盖到最终值
+ * <p>
+ * 记录格式: [int 长度][int CRC32C][long 序号][BSON]，长度最后写入，未写完的记录长度为0，读取时视为结尾。
+ * 断电时最后一条记录可能只有部分落盘，校验失败且之后没有有效记录时视为结尾并截断，日志中间的记录损坏则停止启动
+ */
+@Slf4j
+@Component
+public class Journal implements Container {
+
+    private static final int HEADER_SIZE = 16;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    /**
+     * 重复执行结果不变的操作，其他操作(如$push/$inc)改为$set整个字段的当前值
+     */
+    private static final Set<String> IDEMPOTENT_OPERATORS = Set.of("$set", "$unset", "$addToSet", "$pull", "$pullAll", "$min", "$max", "$setOnInsert");
+
+    private static volatile Journal instance;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private OrmProperties properties;
+
+    private OrmProperties.Journal config;
+    private Path dir;
+    private MongoConverter converter;
+    private QueryMapper queryMapper;
+    private UpdateMapper updateMapper;
+    private final DocumentCodec codec = new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry());
+
+    /**
+     * 段文件，key为段内第一条记录的序号
+     */
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private MappedByteBuffer segment;
+    /**
+     * 刷盘线程提前创建的下一个段，未创建好时为null
+     */
+    private Spare spare;
+    /**
+     * 段文件编号，文件名按编号排序即为写入顺序
+     */
+    private long segmentIndex;
+    private long nextSeq = 1;
+    /**
+     * 各实体最早一条未确认记录的序号
+     */
+    private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+    private long checkpoint;
+    /**
+     * 只在刷盘线程上读写
+     */
+    private MappedByteBuffer syncedSegment;
+    private int syncedPosition;
+    private FileChannel checkpointChannel;
+    private ScheduledExecutorService syncer;
+
+    private record Spare(Path path, MappedByteBuffer buffer) {
+    }
+
+    /**
+     * 未开启或未启动时返回null
+     */
+    public static Journal current() {
+        return instance;
+    }
+
+    /**
+     * 最先启动以便在其他容器开始处理前完成重放，最后停止
+     */
+    @Override
+    public int priority() {
+        return 20;
+    }
+
+    @Override
+    public void start() {
+        config = properties.getJournal();
+        if (!config.isEnabled()) {
+            return;
+        }
+        converter = mongoTemplate.getConverter();
+        queryMapper = new QueryMapper(converter);
+        updateMapper = new UpdateMapper(converter);
+        try {
+            dir = Path.of(config.getDir());
+            Files.createDirectories(dir);
+            checkpointChannel = FileChannel.open(dir.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            replay();
+            rollSegment(config.getSegmentSize());
+        } catch (IOException e) {
+            throw new IllegalStateException("journal start error, dir=" + config.getDir(), e);
+        }
+        syncer = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("journal-sync"));
+        syncer.execute(this::prepareSpare);
+        syncer.scheduleWithFixedDelay(this::sync, config.getSyncIntervalMs(), config.getSyncIntervalMs(), TimeUnit.MILLISECONDS);
+        instance = this;
+    }
+
+    @Override
+    public void stop() {
+        if (syncer == null) {
+            return;
+        }
+        instance = null;
+        syncer.shutdown();
+        try {
+            syncer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        try {
+            Spare unused;
+            synchronized (this) {
+                unused = spare;
+                spare = null;
+            }
+            if (unused != null) {
+                Files.deleteIfExists(unused.path());
+            }
+            checkpointChannel.close();
+        } catch (IOException e) {
+            log.error("journal close error", e);
+        }
+    }
+
+    /**
+     * 追加一条Update记录，在逻辑线程上调用，非幂等操作按实体当前字段值记录
+     *
+     * @param head 是否为实体最早一条未确认记录，是则登记到检查点计算中
+     * @return 记录序号，失败返回0
+     */
+    public long append(AbstractEntity<?> entity, Update update, boolean head) {
+        byte[] payload;
+        try {
+            payload = encode(entity, "u", updateMapper.getMappedObject(postImage(entity, update.getUpdateObject()), persistentEntity(entity)));
+        } catch (RuntimeException e) {
+            log.error("{} journal encode error, id={}", entity.getClass().getSimpleName(), entity.id(), e);
+            return 0;
+        }
+        return write(payload, head);
+    }
+
+    /**
+     * 实体序号不超过upTo的记录都已写入DB，追加确认记录，重放时跳过
+     */
+    public void appendAck(AbstractEntity<?> entity, long upTo) {
+        try {
+            write(encode(entity, "a", upTo), false);
+        } catch (RuntimeException e) {
+            log.error("{} journal ack encode error, id={}", entity.getClass().getSimpleName(), entity.id(), e);
+        }
+    }
+
+    private long write(byte[] payload, boolean head) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        MappedByteBuffer full = null;
+        long seq;
+        synchronized (this) {
+            int size = HEADER_SIZE + payload.length;
+            if (segment.remaining() < size + 4) {
+                full = segment;
+                if (spare != null && spare.buffer().capacity() >= size + 4) {
+                    segment = spare.buffer();
+                    segments.put(nextSeq, spare.path());
+                    spare = null;
+                } else {
+                    // 下一个段还未创建好或记录超过段大小，在锁内创建
+                    rollSegment(Math.max(config.getSegmentSize(), size + 4));
+                }
+            }
+            seq = nextSeq++;
+            int position = segment.position();
+            segment.putInt(position + 4, (int) crc.getValue());
+            segment.putLong(position + 8, seq);
+            segment.put(position + HEADER_SIZE, payload);
+            segment.putInt(position, payload.length);
+            segment.position(position + size);
+            if (head) {
+                pending.add(seq);
+            }
+        }
+        if (full != null) {
+            retire(full);
+        }
+        return seq;
+    }
+
+    /**
+     * 写满的段交给刷盘线程刷盘，并创建下一个段
+     */
+    private void retire(MappedByteBuffer full) {
+        try {
+            syncer.execute(() -> {
+                try {
+                    full.force();
+                } catch (Throwable t) {
+                    log.error("journal segment force error", t);
+                }
+                prepareSpare();
+            });
+        } catch (RejectedExecutionException e) {
+            // 已停止
+            full.force();
+        }
+    }
+
+    /**
+     * 在刷盘线程上创建下一个段
+     */
+    private void prepareSpare() {
+        Path path;
+        synchronized (this) {
+            if (spare != null) {
+                return;
+            }
+            path = nextSegmentPath();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, config.getSegmentSize());
+            synchronized (this) {
+                spare = new Spare(path, buffer);
+            }
+        } catch (Throwable t) {
+            log.error("journal segment create error, path={}", path, t);
+        }
+    }
+
+    private Path nextSegmentPath() {
+        return dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, ++segmentIndex, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * 实体序号之前的记录已确认写入，或已被更早的序号覆盖
+     */
+    public void ack(long seq) {
+        pending.remove(seq);
+    }
+
+    private MongoPersistentEntity<?> persistentEntity(AbstractEntity<?> entity) {
+        return converter.getMappingContext().getPersistentEntity(entity.getClass());
+    }
+
+    private byte[] encode(AbstractEntity<?> entity, String key, Object value) {
+        Document record = new Document("c", mongoTemplate.getCollectionName(entity.getClass()))
+                .append("q", queryMapper.getMappedObject(new Document("_id", entity.id()), persistentEntity(entity)))
+                .append(key, value);
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(buffer), record, EncoderContext.builder().build());
+        return buffer.toByteArray();
+    }
+
+    /**
+     * 非幂等操作涉及的顶层字段改为$set当前值，并去掉其他操作中该字段及其子路径
+     */
+    private static Document postImage(AbstractEntity<?> entity, Document update) {
+        Set<String> fields = new HashSet<>();
+        for (Map.Entry<String, Object> entry : update.entrySet()) {
+            if (!IDEMPOTENT_OPERATORS.contains(entry.getKey()) && entry.getValue() instanceof Document paths) {
+                for (String path : paths.keySet()) {
+                    int dot = path.indexOf('.');
+                    fields.add(dot < 0 ? path : path.substring(0, dot));
+                }
+            }
+        }
+        if (fields.isEmpty()) {
+            return update;
+        }
+        Document result = new Document();
+        for (Map.Entry<String, Object> entry : update.entrySet()) {
+            if (!IDEMPOTENT_OPERATORS.contains(entry.getKey()) || !(entry.getValue() instanceof Document paths)) {
+                continue;
+            }
+            Document kept = new Document();
+            paths.forEach((path, value) -> {
+                int dot = path.indexOf('.');
+                if (!fields.contains(dot < 0 ? path : path.substring(0, dot))) {
+                    kept.put(path, value);
+                }
+            });
+            if (!kept.isEmpty()) {
+                result.put(entry.getKey(), kept);
+            }
+        }
+        Document set = result.get("$set", Document.class);
+        if (set == null) {
+            set = new Document();
+            result.put("$set", set);
+        }
+        for (EntityField field : EntityAccessor.of(entity.getClass()).fields()) {
+            if (fields.remove(field.getName())) {
+                Object value = field.get(entity);
+                set.put(field.getName(), value instanceof Tracked tracked ? tracked.snapshot() : value);
+            }
+        }
+        if (!fields.isEmpty()) {
+            throw new IllegalStateException("journal post image field not found: " + fields);
+        }
+        return result;
+    }
+
+    /**
+     * 刷盘并推进检查点，删除检查点之前的段
+     */
+    private void sync() {
+        try {
+            MappedByteBuffer current;
+            int position;
+            long newCheckpoint;
+            synchronized (this) {
+                current = segment;
+                position = segment.position();
+                newCheckpoint = pending.isEmpty() ? nextSeq : pending.first();
+            }
+            if (current != syncedSegment || position != syncedPosition) {
+                current.force(0, position);
+                syncedSegment = current;
+                syncedPosition = position;
+            }
+            if (newCheckpoint != checkpoint) {
+                writeCheckpoint(newCheckpoint);
+                deleteSegmentsBefore(newCheckpoint);
+            }
+        } catch (Throwable t) {
+            log.error("journal sync error", t);
+        }
+    }
+
+    private void writeCheckpoint(long seq) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16).putLong(seq).putLong(~seq).flip();
+        checkpointChannel.write(buffer, 0);
+        checkpointChannel.force(false);
+        checkpoint = seq;
+    }
+
+    private long readCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        checkpointChannel.read(buffer, 0);
+        if (buffer.position() < 16) {
+            return 0;
+        }
+        buffer.flip();
+        long seq = buffer.getLong();
+        return buffer.getLong() == ~seq ? seq : 0;
+    }
+
+    private void deleteSegmentsBefore(long seq) throws IOException {
+        Map.Entry<Long, Path> live;
+        synchronized (this) {
+            live = segments.floorEntry(seq);
+        }
+        if (live == null) {
+            return;
+        }
+        while (true) {
+            Map.Entry<Long, Path> first;
+            synchronized (this) {
+                first = segments.firstEntry();
+                if (first == null || first.getKey() >= live.getKey()) {
+                    return;
+                }
+                segments.remove(first.getKey());
+            }
+            Files.deleteIfExists(first.getValue());
+        }
+    }
+
+    private void rollSegment(int size) {
+        Path path = nextSegmentPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new IllegalStateException("journal segment create error, path=" + path, e);
+        }
+        segments.put(nextSeq, path);
+    }
+
+    /**
+     * 按序号顺序重放检查点之后未确认的记录，完成后清空旧段
+     * <p>
+     * 日志中间的记录损坏或重放失败时抛出异常，保留日志文件，不进入服务状态
+     */
+    private void replay() throws IOException {
+        long from = readCheckpoint();
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(dir)) {
+            files = stream.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+        // 先收集确认记录，再按顺序重放未确认的记录
+        Map<List<Object>, Long> acks = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            read(files, i, from, (seq, record) -> {
+                Long upTo = record.getLong("a");
+                if (upTo != null) {
+                    acks.merge(List.of(record.getString("c"), record.get("q")), upTo, Math::max);
+                }
+            });
+        }
+        int[] replayed = new int[1];
+        for (int i = 0; i < files.size(); i++) {
+            read(files, i, from, (seq, record) -> {
+                if (record.containsKey("a")) {
+                    return;
+                }
+                Long acked = acks.get(List.of(record.getString("c"), record.get("q")));
+                if (acked == null || seq > acked) {
+                    apply(record);
+                    replayed[0]++;
+                }
+            });
+        }
+        if (replayed[0] > 0) {
+            log.info("journal replayed {} records from seq {}", replayed[0], from);
+        }
+        writeCheckpoint(nextSeq);
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * 读取files[index]中的记录，记录损坏且之后没有有效记录时视为写入中断的结尾，截断后返回
+     */
+    void read(List<Path> files, int index, long from, BiConsumer<Long, Document> consumer) throws IOException {
+        Path file = files.get(index);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int position = 0;
+            while (position + HEADER_SIZE <= buffer.limit()) {
+                int length = buffer.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (!isValid(buffer, position)) {
+                    if (!isTornTail(files, index, buffer, position)) {
+                        // 跳过损坏的记录会让之后的记录在缺少前序修改的情况下生效，停止启动，由人工处理
+                        throw new IllegalStateException("journal record corrupted, file=" + file.getFileName() + ", position=" + position);
+                    }
+                    log.warn("journal torn record at tail truncated, file={}, position={}", file.getFileName(), position);
+                    truncate(file, position);
+                    break;
+                }
+                long seq = buffer.getLong(position + 8);
+                nextSeq = Math.max(nextSeq, seq + 1);
+                if (seq >= from) {
+                    consumer.accept(seq, codec.decode(new BsonBinaryReader(buffer.slice(position + HEADER_SIZE, length)), DecoderContext.builder().build()));
+                }
+                position += HEADER_SIZE + length;
+            }
+        }
+    }
+
+    /**
+     * position处是否为一条完整且校验通过的记录，BSON开头的长度和结尾的0作为校验前的快速过滤
+     */
+    private static boolean isValid(ByteBuffer buffer, int position) {
+        int length = buffer.getInt(position);
+        int start = position + HEADER_SIZE;
+        if (length < 5 || (long) start + length > buffer.limit()) {
+            return false;
+        }
+        if (Integer.reverseBytes(buffer.getInt(start)) != length || buffer.get(start + length - 1) != 0) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(start, length));
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    /**
+     * 损坏位置之后(本段剩余部分和之后的段)都没有有效记录，只可能是最后一条记录未完整落盘
+     */
+    private static boolean isTornTail(List<Path> files, int index, ByteBuffer buffer, int position) throws IOException {
+        if (hasValidRecord(buffer, position + 1)) {
+            return false;
+        }
+        for (int i = index + 1; i < files.size(); i++) {
+            try (FileChannel channel = FileChannel.open(files.get(i), StandardOpenOption.READ)) {
+                if (hasValidRecord(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 记录不对齐，损坏记录的长度也不可信，逐字节查找
+     */
+    private static boolean hasValidRecord(ByteBuffer buffer, int from) {
+        for (int position = from; position + HEADER_SIZE <= buffer.limit(); position++) {
+            if (isValid(buffer, position)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 长度清零，读取时视为结尾
+     */
+    private static void truncate(Path file, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), position);
+            channel.force(false);
+        }
+    }
+
+    private void apply(Document record) {
+        mongoTemplate.getCollection(record.getString("c"))
+                .updateOne(record.get("q", Document.class), record.get("u", Document.class));
+    }
+}
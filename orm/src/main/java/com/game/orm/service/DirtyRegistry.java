@@ -0,0 +1,61 @@
+package com.game.orm.service;
+
+import com.game.orm.base.TaskBus;
+import com.game.orm.entity.AbstractEntity;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * 自上次写入后被访问过的实体，按路由键散列到时间轮的各个槽中，每次推进一个槽，
+ * 一个写入周期内均匀地检测完所有登记的实体，开销与写入量成正比而与缓存大小无关
+ * <p>
+ * 写入未确认的实体和固定的实体检测后重新登记：固定的实体通常在缓存外被长期持有并修改(如在线玩家)，不经过get登记
+ */
+class DirtyRegistry {
+
+    private final List<ConcurrentLinkedQueue<AbstractEntity<?>>> slots;
+    private int cursor;
+
+    DirtyRegistry(int slotCount) {
+        this.slots = new ArrayList<>(Math.max(1, slotCount));
+        for (int i = 0; i < Math.max(1, slotCount); i++) {
+            slots.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * 登记实体，已登记且尚未检测的不重复登记
+     */
+    void touch(AbstractEntity<?> entity) {
+        if (entity != null && entity.touch()) {
+            slots.get(Math.floorMod(Objects.hashCode(entity.ThreadRouteKey()), slots.size())).offer(entity);
+        }
+    }
+
+    /**
+     * 取出下一个槽的实体，按TaskBus线程分组，每个线程提交一个任务
+     */
+    synchronized void advance(Consumer<AbstractEntity<?>> flusher) {
+        ConcurrentLinkedQueue<AbstractEntity<?>> slot = slots.get(cursor);
+        cursor = (cursor + 1) % slots.size();
+        Map<ExecutorService, List<AbstractEntity<?>>> partitions = new HashMap<>();
+        AbstractEntity<?> entity;
+        while ((entity = slot.poll()) != null) {
+            partitions.computeIfAbsent(TaskBus.executorOf(entity.ThreadRouteKey()), _ -> new ArrayList<>()).add(entity);
+        }
+        partitions.forEach((executor, entities) -> executor.execute(() -> {
+            for (AbstractEntity<?> e : entities) {
+                // 先清除标记，检测期间的再次访问会重新登记
+                e.clearTouched();
+                flusher.accept(e);
+                if (e.hasPendingUpdates() || e.isPinned()) {
+                    // 队列未清空或写入未确认时下一轮再检测一次，写入失败放回队列的Update会再次发送
+                    touch(e);
+                }
+            }
+        }));
+    }
+}
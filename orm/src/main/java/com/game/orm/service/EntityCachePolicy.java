@@ -0,0 +1,37 @@
+package com.game.orm.service;
+
+import com.game.orm.config.OrmProperties;
+import com.game.orm.entity.CachePolicy;
+
+/**
+ * 合并注解与配置后的实体缓存策略
+ */
+record EntityCachePolicy(long maximumSize, long maximumWeight, long expireAfterAccessSeconds,
+                         long refreshAfterWriteSeconds, int flushIntervalSeconds,
+                         long warmupLimit, String warmupFilter, String warmupSort) {
+
+    @CachePolicy
+    private static final class Defaults {
+    }
+
+    static EntityCachePolicy resolve(Class<?> entityClazz, OrmProperties properties) {
+        CachePolicy annotation = entityClazz.getAnnotation(CachePolicy.class);
+        if (annotation == null) {
+            annotation = Defaults.class.getAnnotation(CachePolicy.class);
+        }
+        OrmProperties.Policy override = properties.getCache().getPolicies().get(entityClazz.getName());
+        if (override == null) {
+            override = properties.getCache().getPolicies().getOrDefault(entityClazz.getSimpleName(), new OrmProperties.Policy());
+        }
+        int flushIntervalSeconds = override.getFlushIntervalSeconds() != null ? override.getFlushIntervalSeconds() : annotation.flushIntervalSeconds();
+        return new EntityCachePolicy(
+                override.getMaximumSize() != null ? override.getMaximumSize() : annotation.maximumSize(),
+                override.getMaximumWeight() != null ? override.getMaximumWeight() : annotation.maximumWeight(),
+                override.getExpireAfterAccessSeconds() != null ? override.getExpireAfterAccessSeconds() : annotation.expireAfterAccessSeconds(),
+                override.getRefreshAfterWriteSeconds() != null ? override.getRefreshAfterWriteSeconds() : annotation.refreshAfterWriteSeconds(),
+                flushIntervalSeconds > 0 ? flushIntervalSeconds : properties.getFlush().getIntervalSeconds(),
+                override.getWarmupLimit() != null ? override.getWarmupLimit() : annotation.warmupLimit(),
+                override.getWarmupFilter() != null ? override.getWarmupFilter() : annotation.warmupFilter(),
+                override.getWarmupSort() != null ? override.getWarmupSort() : annotation.warmupSort());
+    }
+}
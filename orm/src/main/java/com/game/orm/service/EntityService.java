@@ -1,42 +1,188 @@
 package com.game.orm.service;
 
+import com.game.orm.base.EventBus;
+import com.game.orm.cache.OffHeapEntityCache;
 import com.game.orm.base.TaskBus;
 import com.game.orm.accessor.IAccessor;
 import com.game.orm.base.Container;
+import com.game.orm.config.OrmProperties;
 import com.game.orm.entity.AbstractEntity;
-import com.github.benmanes.caffeine.cache.Cache;
+import com.game.orm.entity.EntityAccessor;
+import com.game.orm.entity.EntityKey;
+import com.game.orm.util.BloomFilter;
+import com.game.orm.util.ClassScannerUtil;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.ResolvableType;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+@Slf4j
 @Service
 public class EntityService implements Container {
 
     @Autowired
     private IAccessor accessor;
-    private final Map<Class<? extends AbstractEntity<?>>, Cache<Object, AbstractEntity<?>>> entityCache = new ConcurrentHashMap<>();
+    @Autowired
+    private OrmProperties properties;
+    @Autowired
+    private OffHeapEntityCache offHeapCache;
+    private final Map<Class<? extends AbstractEntity<?>>, AsyncCache<Object, AbstractEntity<?>>> entityCache = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ExistenceFilter> existenceFilters = new ConcurrentHashMap<>();
+    /**
+     * 全表扫描主键耗时较长，不占用EventBus分区
+     */
+    private final ExecutorService existenceFilterBuilder = Executors.newSingleThreadExecutor(existenceFilterThreadFactory());
+    private final Map<Class<?>, EntityCachePolicy> cachePolicies = new ConcurrentHashMap<>();
+    /**
+     * 按检测周期(秒)区分的时间轮
+     */
+    private final Map<Integer, DirtyRegistry> dirtyRegistries = new ConcurrentHashMap<>();
+    /**
+     * 被淘汰时可能还有未写入修改的实体(尚未检测，或Update在写缓冲、重试退避中)，按类、主键保存，
+     * 写入确认前再次加载返回同一实例，避免从DB读到旧文档，之后的写入又覆盖排队中的修改
+     */
+    private final Map<Class<?>, Map<Object, Evicted>> evicted = new ConcurrentHashMap<>();
+    private volatile boolean started;
 
+    /**
+     * 预热完成后才返回，Context启动完成即表示缓存已就绪
+     */
     @Override
     public void start() {
-        // ClassScannerUtil.scan("com.game.orm", AbstractEntity.class);
+        warmup();
+        started = true;
+    }
+
+    /**
+     * 按各实体类的CachePolicy预热缓存：数值主键按$mod分到各EventBus线程并行读取游标，读取的实体已记录基线
+     * <p>
+     * 超时或失败时取消未完成的游标并抛出异常，启动失败
+     */
+    private void warmup() {
+        OrmProperties.Warmup config = properties.getWarmup();
+        if (!config.isEnabled()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        for (Class<?> clazz : ClassScannerUtil.scan(config.getBasePackage(), AbstractEntity.class)) {
+            if (Modifier.isAbstract(clazz.getModifiers()) || policyOf(clazz).warmupLimit() <= 0) {
+                continue;
+            }
+            futures.addAll(warmup(clazz, policyOf(clazz), cancelled));
+        }
+        if (futures.isEmpty()) {
+            return;
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(config.getTimeoutSeconds(), TimeUnit.SECONDS);
+            int count = futures.stream().mapToInt(CompletableFuture::join).sum();
+            log.info("entity cache warmup {} entities, cost {}ms", count, System.currentTimeMillis() - start);
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("entity cache warmup interrupted", e);
+        } catch (ExecutionException | TimeoutException e) {
+            // 游标在下一批时检查标记后中止，不再占用EventBus线程
+            cancelled.set(true);
+            throw new IllegalStateException("entity cache warmup error", e);
+        }
+    }
+
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> List<CompletableFuture<Integer>> warmup(Class<?> entityClazz, EntityCachePolicy policy, AtomicBoolean cancelled) {
+        // 扫描结果已过滤为AbstractEntity子类
+        @SuppressWarnings("unchecked")
+        Class<E> clazz = (Class<E>) entityClazz;
+        Class<?> pkType = ResolvableType.forClass(clazz).as(AbstractEntity.class).getGeneric(0).resolve();
+        // $mod只适用于数值主键
+        boolean numeric = pkType != null && Number.class.isAssignableFrom(pkType);
+        int partitions = numeric ? EventBus.parallelism() : 1;
+        long limit = (policy.warmupLimit() + partitions - 1) / partitions;
+        Map<Object, AbstractEntity<?>> cache = cacheOf(clazz).synchronous().asMap();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            BasicQuery query = new BasicQuery(policy.warmupFilter().isEmpty() ? "{}" : policy.warmupFilter());
+            if (!policy.warmupSort().isEmpty()) {
+                query.setSortObject(Document.parse(policy.warmupSort()));
+            }
+            if (numeric) {
+                // 负数主键的余数为负，与i - partitions同余
+                query.addCriteria(i == 0 ? Criteria.where("_id").mod(partitions, 0)
+                        : new Criteria().orOperator(Criteria.where("_id").mod(partitions, i), Criteria.where("_id").mod(partitions, i - partitions)));
+            }
+            query.limit((int) Math.min(Integer.MAX_VALUE, limit));
+            Executor executor = numeric ? EventBus.executorAt(i) : EventBus.executorOf(clazz);
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                int[] count = new int[1];
+                accessor.forEachBatch(query, 500, clazz, batch -> {
+                    if (cancelled.get()) {
+                        throw new CancellationException(clazz.getSimpleName() + " warmup cancelled");
+                    }
+                    for (E entity : batch) {
+                        if (cache.putIfAbsent(entity.id(), entity) == null) {
+                            count[0]++;
+                        }
+                    }
+                });
+                return count[0];
+            }, executor));
+        }
+        return futures;
+    }
+
+    private static CustomizableThreadFactory existenceFilterThreadFactory() {
+        CustomizableThreadFactory factory = new CustomizableThreadFactory("existence-filter");
+        factory.setDaemon(true);
+        return factory;
     }
 
     @Override
     public void stop() {
+        existenceFilterBuilder.shutdownNow();
         persisterEntity();
+        // 等待逻辑线程上的检测任务把更新交给写缓冲，之后由IoThreadAccessor停止时写入
+        TaskBus.await(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 每秒检测时间轮中的一个槽
+     * <p>
+     * 只检测登记过的实体，修改实体的代码路径必须经过 {@link #touch}(get系列方法会自动登记)，否则修改要到淘汰或停服时才写入
+     */
+    @Scheduled(fixedRate = 1000)
+    public void flushSlice() {
+        dirtyRegistries.values().forEach(registry -> registry.advance(entity -> {
+            if (entity.checkUpdateFields()) {
+                accessor.update(entity);
+            }
+        }));
+        evicted.values().forEach(map -> map.values().removeIf(Evicted::written));
     }
 
-    @Scheduled(cron = "0 */1 * * * *")
+    /**
+     * 检测全部缓存中的实体，停服时使用
+     */
     public void persisterEntity() {
         entityCache.values().forEach(cache -> {
-            cache.asMap().values().forEach(entity -> {
-                TaskBus.execute(entity.ThreadRouteKey(), () -> {
+            cache.synchronous().asMap().values().forEach(entity -> {
+                // 一次提交全部缓存实体，队列满时同一实体的检测可以合并
+                TaskBus.executeCoalescing(entity.ThreadRouteKey(), EntityKey.of(entity), () -> {
                     if (entity.checkUpdateFields()) {
                         accessor.update(entity);
                     }
@@ -45,31 +191,291 @@ public class EntityService implements Container {
         });
     }
 
+    /**
+     * 登记实体待检测，get系列方法会自动登记，缓存外持有实体修改时调用
+     * <p>
+     * 登记在检测时清除，跨检测周期持有实体引用并修改的(如定时器)每次修改后都要重新调用，固定的实体检测后会自动重新登记
+     */
+    public void touch(AbstractEntity<?> entity) {
+        if (!started || entity == null) {
+            return;
+        }
+        int interval = policyOf(entity.getClass()).flushIntervalSeconds();
+        dirtyRegistries.computeIfAbsent(interval, DirtyRegistry::new).touch(entity);
+    }
+
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E get(PK id, Class<E> entityClazz) {
-        Cache<Object, AbstractEntity<?>> cache = entityCache.computeIfAbsent(entityClazz, _ -> Caffeine.newBuilder()
-                .expireAfterAccess(3, TimeUnit.MINUTES)
-                .maximumSize(3000)
-                .removalListener((k, v, removalCause) -> {
-                    accessor.fullUpdate((E) v);
-                })
-                .build());
-        return (E) cache.get(id, k -> load((PK) k, entityClazz));
+        E entity = (E) cacheOf(entityClazz).synchronous().get(id, k -> load((PK) k, entityClazz));
+        touch(entity);
+        return entity;
     }
 
-    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E load(PK Id, Class<E> clazz) {
-        try {
-            E e = accessor.find(Id, clazz);
-            // todo 计算hashcode和json
-            if (e == null) {
-                e = clazz.getDeclaredConstructor().newInstance();
-                e.setId(Id);
-                accessor.insert(e);
+    /**
+     * 异步获取，未命中时在主键所在的EventBus线程上加载，同一主键的并发加载只执行一次；
+     * 结果回到调用方所在的TaskBus线程，不在TaskBus线程上调用时回到实体 {@link AbstractEntity#ThreadRouteKey()} 所在的TaskBus线程
+     */
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> CompletableFuture<E> getAsync(PK id, Class<E> entityClazz) {
+        Executor callback = TaskBus.currentExecutor();
+        CompletableFuture<AbstractEntity<?>> future = cacheOf(entityClazz).get(id, (k, _) ->
+                CompletableFuture.supplyAsync(() -> load((PK) k, entityClazz), EventBus.executorOf(k)));
+        if (callback != null) {
+            return future.thenApplyAsync(entity -> {
+                touch(entity);
+                return (E) entity;
+            }, callback);
+        }
+        // 路由键不一定是主键，加载完成后才能确定所在的逻辑线程
+        return future.thenCompose(entity -> CompletableFuture.supplyAsync(() -> {
+            touch(entity);
+            return (E) entity;
+        }, TaskBus.executorOf(entity.ThreadRouteKey())));
+    }
+
+    /**
+     * 批量获取，缓存命中的直接返回，未命中的一次查询取出并批量放入缓存，不存在的与 {@link #get} 一样创建
+     */
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> Map<PK, E> getAll(Collection<PK> ids, Class<E> entityClazz) {
+        Map<Object, AbstractEntity<?>> result = cacheOf(entityClazz).synchronous().getAll(ids, keys -> loadAll((Set<PK>) keys, entityClazz));
+        result.values().forEach(this::touch);
+        return (Map<PK, E>) (Map<?, ?>) result;
+    }
+
+    /**
+     * 固定实体，引用计数大于0期间不会被淘汰，用于在线玩家等活跃实体
+     */
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E pin(PK id, Class<E> entityClazz) {
+        E entity = get(id, entityClazz);
+        if (entity.pin() == 1) {
+            reweigh(id, entityClazz);
+        }
+        return entity;
+    }
+
+    public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void unpin(PK id, Class<E> entityClazz) {
+        AbstractEntity<?> entity = cacheOf(entityClazz).synchronous().getIfPresent(id);
+        if (entity != null && entity.isPinned() && entity.unpin() == 0) {
+            reweigh(id, entityClazz);
+        }
+    }
+
+    /**
+     * 以原值重新写入，使缓存按固定状态重新计算权重和过期时间
+     */
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void reweigh(PK id, Class<E> entityClazz) {
+        cacheOf(entityClazz).synchronous().asMap().computeIfPresent(id, (k, v) -> v);
+    }
+
+    private EntityCachePolicy policyOf(Class<?> entityClazz) {
+        return cachePolicies.computeIfAbsent(entityClazz, clazz -> EntityCachePolicy.resolve(clazz, properties));
+    }
+
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> AsyncCache<Object, AbstractEntity<?>> cacheOf(Class<E> entityClazz) {
+        return entityCache.computeIfAbsent(entityClazz, _ -> {
+            EntityCachePolicy policy = policyOf(entityClazz);
+            // 固定的实体权重为0且不过期，不参与淘汰；按数量限制时每个实体权重为1
+            Caffeine<Object, AbstractEntity<?>> builder = Caffeine.newBuilder()
+                    .expireAfter(new PinAwareExpiry(TimeUnit.SECONDS.toNanos(policy.expireAfterAccessSeconds())));
+            boolean bySize = policy.maximumWeight() > 0;
+            builder.maximumWeight(bySize ? policy.maximumWeight() : policy.maximumSize())
+                    .weigher(new PinAwareWeigher(bySize));
+            // 与淘汰原子执行，之后的加载一定能取到
+            builder.evictionListener((k, v, removalCause) -> {
+                if (v != null) {
+                    evictedOf(entityClazz).put(k, new Evicted(v));
+                }
+            });
+            builder.removalListener((k, v, removalCause) -> {
+                if (v == null || removalCause == RemovalCause.REPLACED) {
+                    return;
+                }
+                // 回到实体所在的逻辑线程检测，只读未修改的实体不写入；修改的以增量更新交给写缓冲，与同一窗口的其他写入合并
+                E entity = (E) v;
+                TaskBus.execute(entity.ThreadRouteKey(), () -> {
+                    if (entity.checkUpdateFields()) {
+                        accessor.update(entity);
+                        // 堆外可能还有之前放入的旧副本，下次加载以DB为准
+                        offHeapCache.remove(entity.getClass(), entity.id());
+                    } else if (removalCause.wasEvicted() && !entity.hasPendingUpdates()) {
+                        // 未修改且没有待确认写入的实体与DB一致，放入堆外缓存
+                        offHeapCache.put(entity);
+                        evictedOf(entityClazz).computeIfPresent(k, (_, e) -> e.entity == entity ? null : e);
+                        return;
+                    } else if (entity.hasPendingUpdates()) {
+                        // 未修改但之前的写入尚未确认，堆外的旧副本同样过期
+                        offHeapCache.remove(entity.getClass(), entity.id());
+                    }
+                    Evicted e = evictedOf(entityClazz).get(k);
+                    if (e != null && e.entity == entity) {
+                        e.checked = true;
+                    }
+                });
+            });
+            if (policy.refreshAfterWriteSeconds() > 0) {
+                builder.refreshAfterWrite(policy.refreshAfterWriteSeconds(), TimeUnit.SECONDS);
+                return builder.buildAsync(new AsyncCacheLoader<Object, AbstractEntity<?>>() {
+                    @Override
+                    public CompletableFuture<AbstractEntity<?>> asyncLoad(Object key, Executor executor) {
+                        return CompletableFuture.supplyAsync(() -> load((PK) key, entityClazz), EventBus.executorOf(key));
+                    }
+
+                    @Override
+                    public CompletableFuture<AbstractEntity<?>> asyncReload(Object key, AbstractEntity<?> oldValue, Executor executor) {
+                        return asyncLoad(key, executor).thenApplyAsync(fresh -> refreshed(oldValue, fresh), TaskBus.executorOf(oldValue.ThreadRouteKey()));
+                    }
+                });
             }
+            return builder.buildAsync();
+        });
+    }
+
+    /**
+     * 在实体所在的逻辑线程上决定是否替换：固定的实体可能被逻辑代码持有引用，有未写入修改的替换会丢失修改，都保留原实例
+     */
+    private AbstractEntity<?> refreshed(AbstractEntity<?> current, AbstractEntity<?> fresh) {
+        if (current.checkUpdateFields()) {
+            accessor.update(current);
+            return current;
+        }
+        return current.isPinned() || current.hasPendingUpdates() ? current : fresh;
+    }
+
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E load(PK id, Class<E> clazz) {
+        E pending = takeEvicted(id, clazz);
+        if (pending != null) {
+            return pending;
+        }
+        E cached = offHeapCache.take(id, clazz);
+        if (cached != null) {
+            return cached;
+        }
+        ExistenceFilter filter = existenceFilter(clazz);
+        if (filter != null && filter.ready && !filter.bloom.mightContain(id)) {
+            // 确定不存在，本地创建后异步插入
+            E e = EntityAccessor.of(clazz).newInstance();
+            e.setId(id);
+            // 插入的是完整文档，以初始值作为基线
+            e.captureBaseline();
+            filter.bloom.put(id);
+            accessor.insert(e);
             return e;
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException |
-                 NoSuchMethodException e) {
-            throw new RuntimeException(e);
         }
+        E e = accessor.findOrCreate(id, clazz);
+        if (filter != null) {
+            // 构建中也要放入，扫描游标可能已经越过这个主键
+            filter.bloom.put(id);
+        }
+        return e;
+    }
+
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> Map<Object, AbstractEntity<?>> loadAll(Set<PK> ids, Class<E> clazz) {
+        Map<Object, AbstractEntity<?>> result = new HashMap<>(Math.max(16, (int) (ids.size() / .75f) + 1));
+        for (PK id : ids) {
+            E cached = takeEvicted(id, clazz);
+            if (cached == null) {
+                cached = offHeapCache.take(id, clazz);
+            }
+            if (cached != null) {
+                result.put(id, cached);
+            }
+        }
+        ExistenceFilter filter = existenceFilter(clazz);
+        List<PK> unknown = ids.stream().filter(id -> !result.containsKey(id) && (filter == null || !filter.ready || filter.bloom.mightContain(id))).toList();
+        for (E e : accessor.findByIds(unknown, clazz)) {
+            result.put(e.id(), e);
+        }
+        List<E> created = new ArrayList<>();
+        for (PK id : ids) {
+            if (result.containsKey(id)) {
+                continue;
+            }
+            E e = EntityAccessor.of(clazz).newInstance();
+            e.setId(id);
+            e.captureBaseline();
+            created.add(e);
+            result.put(id, e);
+            if (filter != null) {
+                filter.bloom.put(id);
+            }
+        }
+        if (!created.isEmpty()) {
+            accessor.batchInsert(created);
+        }
+        return result;
+    }
+
+    private Map<Object, Evicted> evictedOf(Class<?> clazz) {
+        return evicted.computeIfAbsent(clazz, _ -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * 取出淘汰后还未确认写入的实例，重新放回缓存；堆外的副本不会比它新
+     */
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> E takeEvicted(PK id, Class<E> clazz) {
+        Map<Object, Evicted> map = evicted.get(clazz);
+        Evicted e = map == null ? null : map.remove(id);
+        if (e == null) {
+            return null;
+        }
+        offHeapCache.remove(clazz, id);
+        return clazz.cast(e.entity);
+    }
+
+    /**
+     * 淘汰的实体，checked表示已在逻辑线程上检测过，之后没有待确认的写入即与DB一致
+     */
+    private static final class Evicted {
+        private final AbstractEntity<?> entity;
+        private volatile boolean checked;
+
+        private Evicted(AbstractEntity<?> entity) {
+            this.entity = entity;
+        }
+
+        private boolean written() {
+            return checked && !entity.hasPendingUpdates();
+        }
+    }
+
+    /**
+     * 已存在主键的布隆过滤器，扫描开始前创建，构建期间新建的主键也放入，扫描完成后才用于判断不存在
+     */
+    private static final class ExistenceFilter {
+        private final BloomFilter bloom;
+        private volatile boolean ready;
+
+        private ExistenceFilter(BloomFilter bloom) {
+            this.bloom = bloom;
+        }
+    }
+
+    /**
+     * 首次使用时在专用线程上以游标读取全部主键构建，未开启时返回null
+     */
+    private <PK extends Comparable<PK>, E extends AbstractEntity<PK>> ExistenceFilter existenceFilter(Class<E> clazz) {
+        OrmProperties.ExistenceFilter config = properties.getExistenceFilter();
+        if (!config.isEnabled()) {
+            return null;
+        }
+        return existenceFilters.computeIfAbsent(clazz, _ -> {
+            ExistenceFilter result = new ExistenceFilter(new BloomFilter(config.getExpectedInsertions(), config.getFpp()));
+            try {
+                existenceFilterBuilder.execute(() -> {
+                    try {
+                        Query query = new Query();
+                        query.fields().include("_id");
+                        accessor.forEachBatch(query, 1000, clazz, batch -> batch.forEach(e -> result.bloom.put(e.id())));
+                        result.ready = true;
+                    } catch (Throwable t) {
+                        log.error("{} existence filter build error", clazz.getSimpleName(), t);
+                        existenceFilters.remove(clazz, result);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 已停止，过滤器保持未就绪
+                log.warn("{} existence filter build rejected", clazz.getSimpleName());
+            }
+            return result;
+        });
     }
 
     public <PK extends Comparable<PK>, E extends AbstractEntity<PK>> void update(E entity) {
@@ -0,0 +1,35 @@
+package com.game.orm.service;
+
+import com.game.orm.entity.AbstractEntity;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+/**
+ * 访问后过期，固定的实体不过期
+ */
+class PinAwareExpiry implements Expiry<Object, AbstractEntity<?>> {
+
+    private final long expireAfterAccessNanos;
+
+    PinAwareExpiry(long expireAfterAccessNanos) {
+        this.expireAfterAccessNanos = expireAfterAccessNanos;
+    }
+
+    private long expireAfter(AbstractEntity<?> entity) {
+        return entity.isPinned() ? Long.MAX_VALUE : expireAfterAccessNanos;
+    }
+
+    @Override
+    public long expireAfterCreate(Object key, AbstractEntity<?> value, long currentTime) {
+        return expireAfter(value);
+    }
+
+    @Override
+    public long expireAfterUpdate(Object key, AbstractEntity<?> value, long currentTime, long currentDuration) {
+        return expireAfter(value);
+    }
+
+    @Override
+    public long expireAfterRead(Object key, AbstractEntity<?> value, long currentTime, long currentDuration) {
+        return expireAfter(value);
+    }
+}
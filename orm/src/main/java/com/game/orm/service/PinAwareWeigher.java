@@ -0,0 +1,27 @@
+package com.game.orm.service;
+
+import com.game.orm.entity.AbstractEntity;
+import com.game.orm.entity.SizeEstimator;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+/**
+ * 固定的实体权重为0，不参与淘汰；按数量限制时每个实体权重为1，否则按估算的字节数
+ * <p>
+ * 权重在放入缓存或固定状态变化时计算，之后实体变大不会重新计算
+ */
+class PinAwareWeigher implements Weigher<Object, AbstractEntity<?>> {
+
+    private final boolean bySize;
+
+    PinAwareWeigher(boolean bySize) {
+        this.bySize = bySize;
+    }
+
+    @Override
+    public int weigh(Object key, AbstractEntity<?> value) {
+        if (value.isPinned()) {
+            return 0;
+        }
+        return bySize ? (int) Math.min(Integer.MAX_VALUE, SizeEstimator.estimate(value)) : 1;
+    }
+}
@@ -0,0 +1,102 @@
+package com.game.orm.service;
+
+import com.game.orm.base.Container;
+import com.game.orm.base.EventBus;
+import com.game.orm.base.QueueStats;
+import com.game.orm.base.TaskBus;
+import com.game.orm.config.OrmProperties;
+import com.game.orm.util.ThreadUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定期检查TaskBus/EventBus各分区的队列深度、最早任务等待时长和吞吐量，
+ * 分区积压或出现拒绝时输出警告，用于DB故障期间判断哪个分区落后
+ * <p>
+ * 使用独立的调度线程，共用的Spring调度线程被其他定时任务阻塞时依然能按时检查
+ */
+@Slf4j
+@Component
+public class QueueMonitor implements Container {
+
+    @Autowired
+    private OrmProperties properties;
+
+    private final Gauge task = new Gauge("task");
+    private final Gauge event = new Gauge("event");
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void start() {
+        long interval = properties.getDispatch().getMonitorIntervalMs();
+        scheduler = Executors.newSingleThreadScheduledExecutor(monitorThreadFactory());
+        scheduler.scheduleWithFixedDelay(ThreadUtil.safeRunnable(this::check), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static CustomizableThreadFactory monitorThreadFactory() {
+        CustomizableThreadFactory factory = new CustomizableThreadFactory("queue-monitor");
+        factory.setDaemon(true);
+        return factory;
+    }
+
+    @Override
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public void check() {
+        long lagWarnNanos = TimeUnit.MILLISECONDS.toNanos(properties.getDispatch().getLagWarnMs());
+        task.update(TaskBus.queueStats(), lagWarnNanos);
+        event.update(EventBus.queueStats(), lagWarnNanos);
+    }
+
+    /**
+     * 单个总线上次检查时的累计值，用于计算区间吞吐量和新增拒绝数
+     */
+    private static final class Gauge {
+        private final String name;
+        private long lastNanos = System.nanoTime();
+        private long[] lastCompleted = new long[0];
+        private long[] lastRejected = new long[0];
+
+        private Gauge(String name) {
+            this.name = name;
+        }
+
+        private void update(QueueStats[] stats, long lagWarnNanos) {
+            long now = System.nanoTime();
+            double seconds = Math.max(1, now - lastNanos) / 1e9;
+            if (lastCompleted.length != stats.length) {
+                lastCompleted = new long[stats.length];
+                lastRejected = new long[stats.length];
+            }
+            long depth = 0;
+            long throughput = 0;
+            for (int i = 0; i < stats.length; i++) {
+                QueueStats s = stats[i];
+                depth += s.depth();
+                throughput += Math.max(0, s.completed() - lastCompleted[i]);
+                long rejected = s.rejected() - lastRejected[i];
+                if (s.oldestAgeNanos() > lagWarnNanos || rejected > 0) {
+                    log.warn("{} bus partition {} behind, depth {}/{}, oldest task waited {}ms, {} tasks/s, rejected {}, coalesced {}",
+                            name, i, s.depth(), s.capacity(), TimeUnit.NANOSECONDS.toMillis(s.oldestAgeNanos()),
+                            (long) ((s.completed() - lastCompleted[i]) / seconds), rejected, s.coalesced());
+                }
+                lastCompleted[i] = s.completed();
+                lastRejected[i] = s.rejected();
+            }
+            lastNanos = now;
+            if (log.isDebugEnabled()) {
+                log.debug("{} bus {} partitions, total depth {}, {} tasks/s", name, stats.length, depth, (long) (throughput / seconds));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.game.orm.service;
+
+import com.game.orm.base.EventBus;
+import com.game.orm.base.RouteLoad;
+import com.game.orm.base.TaskBus;
+import com.game.orm.config.OrmProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定期输出TaskBus/EventBus的分区负载和热点键，开启迁移时把TaskBus最忙分区上的热点键整体移到最闲分区
+ * <p>
+ * EventBus的写缓冲按分区划分，键迁移会打乱缓冲中的写入顺序，因此只统计不迁移
+ */
+@Slf4j
+@Component
+public class RouteBalancer {
+
+    @Autowired
+    private OrmProperties properties;
+
+    @Scheduled(fixedDelayString = "${orm.routing.rebalance-interval-ms:10000}")
+    public void rebalance() {
+        OrmProperties.Routing config = properties.getRouting();
+        RouteLoad taskLoad = TaskBus.load();
+        if (taskLoad != null) {
+            RouteLoad.Snapshot snapshot = taskLoad.snapshot(config.getTopK());
+            report("task", snapshot);
+            if (config.isRemapEnabled()) {
+                remap(snapshot, config);
+            }
+        }
+        RouteLoad eventLoad = EventBus.load();
+        if (eventLoad != null) {
+            report("event", eventLoad.snapshot(config.getTopK()));
+        }
+    }
+
+    private void report(String name, RouteLoad.Snapshot snapshot) {
+        if (!log.isDebugEnabled() || snapshot.topByNanos().isEmpty()) {
+            return;
+        }
+        int busiest = snapshot.busiest();
+        log.debug("{} bus window {}ms, busiest partition {} cost {}ms tasks {}, average cost {}ms, top by tasks {}, top by time {}",
+                name, TimeUnit.NANOSECONDS.toMillis(snapshot.windowNanos()), busiest,
+                TimeUnit.NANOSECONDS.toMillis(snapshot.partitionNanos()[busiest]), snapshot.partitionTasks()[busiest],
+                TimeUnit.NANOSECONDS.toMillis(snapshot.averageNanos()), snapshot.topByTasks(), snapshot.topByNanos());
+    }
+
+    /**
+     * 每个窗口最多迁移一个键：最忙分区上耗时最多、且迁走后不会让最闲分区变成新热点的键
+     */
+    private void remap(RouteLoad.Snapshot snapshot, OrmProperties.Routing config) {
+        int busiest = snapshot.busiest();
+        int idlest = snapshot.idlest();
+        long busyNanos = snapshot.partitionNanos()[busiest];
+        long idleNanos = snapshot.partitionNanos()[idlest];
+        if (busiest == idlest || busyNanos <= snapshot.averageNanos() * config.getImbalanceRatio()) {
+            return;
+        }
+        if (TaskBus.remappedKeys().size() >= config.getMaxRemappedKeys()) {
+            return;
+        }
+        for (RouteLoad.HotKey hotKey : snapshot.topByNanos()) {
+            if (hotKey.partition() != busiest || TaskBus.indexOf(hotKey.key()) != busiest) {
+                continue;
+            }
+            if (idleNanos + hotKey.nanos() >= busyNanos) {
+                continue;
+            }
+            if (TaskBus.remap(hotKey.key(), idlest)) {
+                log.info("task bus remap key {} from partition {} to {}, cost {}ms in last window",
+                        hotKey.key(), busiest, idlest, TimeUnit.NANOSECONDS.toMillis(hotKey.nanos()));
+            }
+            return;
+        }
+    }
+}
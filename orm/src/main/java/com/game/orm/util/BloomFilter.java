@@ -0,0 +1,63 @@
+package com.game.orm.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 线程安全的布隆过滤器，mightContain返回false时一定不存在
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bitSize = Math.max(64, (m + 63) & ~63L);
+        this.bits = new AtomicLongArray(Math.toIntExact(bitSize >>> 6));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+    }
+
+    public void put(Object key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < hashCount; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long old;
+            while (((old = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, old, old | mask)) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    public boolean mightContain(Object key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < hashCount; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (index >>> 6)) & 1L << index) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(Object key) {
+        long hash = key instanceof Number number ? number.longValue() : key.hashCode();
+        return mix(hash);
+    }
+
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
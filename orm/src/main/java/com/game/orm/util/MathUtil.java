@@ -10,4 +10,16 @@ public class MathUtil {
     public static int safeFindNextPositivePowerOfTwo(int value) {
         return value <= 0 ? 1 : (value >= 1073741824 ? 1073741824 : findNextPositivePowerOfTwo(value));
     }
+
+    /**
+     * MurmurHash3的fmix64，使低位充分依赖所有输入位，用于hashCode分布不均的键
+     */
+    public static long mix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
 }
@@ -1,25 +1,377 @@
 package com.game.orm.util;
 
+import com.alibaba.fastjson2.JSON;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Transient;
 
 import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.PriorityBlockingQueue;
 
+/**
+ * 深拷贝
+ * <p>
+ * 每个类型首次拷贝时反射一次，生成由MethodHandle组成的拷贝器并缓存，之后的拷贝接近手写拷贝构造的开销。
+ * 支持不可变类型、枚举、数组、集合、Map、record和带无参构造的POJO，其余类型退回JSON序列化拷贝
+ */
 @Slf4j
 public class ObjectCloner {
 
+    private static final int MAX_DEPTH = 64;
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final Copier IDENTITY = (source, depth) -> source;
+
+    /**
+     * LinkedHashMap.accessOrder，java.util未对当前模块开放反射时为null
+     */
+    private static final VarHandle ACCESS_ORDER = accessOrderHandle();
+
+    private static final ClassValue<Copier> COPIERS = new ClassValue<>() {
+        @Override
+        protected Copier computeValue(Class<?> type) {
+            return createCopier(type);
+        }
+    };
+
+    @FunctionalInterface
+    private interface Copier {
+        Object copy(Object source, int depth) throws Throwable;
+    }
+
+    /**
+     * 兼容旧接口，原先基于Java序列化实现
+     */
     public static <T extends Serializable> T clone(Object obj) {
+        return (T) copy(obj);
+    }
+
+    public static <T> T copy(T obj) {
+        if (obj == null) {
+            return null;
+        }
+        try {
+            return (T) copy(obj, 0);
+        } catch (Throwable t) {
+            log.error("ObjectCloner copy {} error", obj.getClass().getName(), t);
+            return null;
+        }
+    }
+
+    public static boolean isImmutable(Class<?> type) {
+        return type.isPrimitive() || type == String.class || type == Boolean.class || type == Character.class ||
+                type == Byte.class || type == Short.class || type == Integer.class || type == Long.class ||
+                type == Float.class || type == Double.class || type == BigInteger.class || type == BigDecimal.class ||
+                type == UUID.class || type == ObjectId.class || type == Class.class ||
+                Enum.class.isAssignableFrom(type) || "java.time".equals(type.getPackageName());
+    }
+
+    private static Object copy(Object source, int depth) throws Throwable {
+        if (source == null) {
+            return null;
+        }
+        if (depth > MAX_DEPTH) {
+            throw new IllegalStateException("copy depth exceed " + MAX_DEPTH + ", circular reference?");
+        }
+        return COPIERS.get(source.getClass()).copy(source, depth + 1);
+    }
+
+    private static Copier createCopier(Class<?> type) {
+        if (isImmutable(type)) {
+            return IDENTITY;
+        }
+        if (Date.class.isAssignableFrom(type)) {
+            return (source, depth) -> ((Date) source).clone();
+        }
+        if (type.isArray()) {
+            return arrayCopier(type);
+        }
+        if (EnumSet.class.isAssignableFrom(type)) {
+            return (source, depth) -> EnumSet.copyOf((EnumSet) source);
+        }
+        if (EnumMap.class.isAssignableFrom(type)) {
+            return (source, depth) -> {
+                EnumMap<?, Object> target = new EnumMap<>((EnumMap<?, Object>) source);
+                for (Map.Entry<?, Object> entry : target.entrySet()) {
+                    entry.setValue(copy(entry.getValue(), depth));
+                }
+                return target;
+            };
+        }
+        if (Collection.class.isAssignableFrom(type)) {
+            return collectionCopier(type);
+        }
+        if (Map.class.isAssignableFrom(type)) {
+            return mapCopier(type);
+        }
+        try {
+            if (type.isRecord()) {
+                return recordCopier(type);
+            }
+            return objectCopier(type);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("{} copier generate failed, fallback to json", type.getName(), e);
+            return (source, depth) -> JSON.parseObject(JSON.toJSONString(source), type);
+        }
+    }
+
+    private static Copier arrayCopier(Class<?> type) {
+        Class<?> component = type.getComponentType();
+        if (component.isPrimitive()) {
+            return (source, depth) -> switch (source) {
+                case boolean[] a -> a.clone();
+                case byte[] a -> a.clone();
+                case short[] a -> a.clone();
+                case char[] a -> a.clone();
+                case int[] a -> a.clone();
+                case long[] a -> a.clone();
+                case float[] a -> a.clone();
+                case double[] a -> a.clone();
+                default -> throw new IllegalStateException("unsupported array " + type);
+            };
+        }
+        boolean immutable = isImmutable(component) && Modifier.isFinal(component.getModifiers());
+        return (source, depth) -> {
+            Object[] target = ((Object[]) source).clone();
+            if (!immutable) {
+                for (int i = 0; i < target.length; i++) {
+                    target[i] = copy(target[i], depth);
+                }
+            }
+            return target;
+        };
+    }
+
+    private static Copier collectionCopier(Class<?> type) {
+        MethodHandle constructor = noArgConstructor(type);
+        // 带比较器的集合无参构造会丢失比较器
+        if (type == TreeSet.class || type == ConcurrentSkipListSet.class || type == PriorityQueue.class || type == PriorityBlockingQueue.class) {
+            constructor = null;
+        }
+        MethodHandle finalConstructor = constructor;
+        return (source, depth) -> {
+            Collection<Object> collection = (Collection<Object>) source;
+            Collection<Object> target;
+            if (finalConstructor != null) {
+                target = (Collection<Object>) (Object) finalConstructor.invokeExact();
+            } else if (collection instanceof PriorityQueue<Object> queue) {
+                target = new PriorityQueue<>(Math.max(1, queue.size()), queue.comparator());
+            } else if (collection instanceof PriorityBlockingQueue<Object> queue) {
+                target = new PriorityBlockingQueue<>(Math.max(1, queue.size()), queue.comparator());
+            } else if (collection instanceof ConcurrentSkipListSet<Object> sortedSet) {
+                target = new ConcurrentSkipListSet<>(sortedSet.comparator());
+            } else if (collection instanceof SortedSet<Object> sortedSet) {
+                target = new TreeSet<>(sortedSet.comparator());
+            } else if (collection instanceof Set) {
+                // 不可变集合等没有无参构造的类型，退回为等价的可变集合
+                target = new LinkedHashSet<>(Math.max(16, (int) (collection.size() / .75f) + 1));
+            } else if (collection instanceof Queue) {
+                target = new ArrayDeque<>(collection.size());
+            } else {
+                target = new ArrayList<>(collection.size());
+            }
+            for (Object element : collection) {
+                target.add(copy(element, depth));
+            }
+            return target;
+        };
+    }
+
+    private static Copier mapCopier(Class<?> type) {
+        MethodHandle constructor = noArgConstructor(type);
+        // 带比较器的Map、LinkedHashMap(accessOrder)无参构造会丢失构造参数
+        if (type == TreeMap.class || type == ConcurrentSkipListMap.class || type == LinkedHashMap.class) {
+            constructor = null;
+        }
+        MethodHandle finalConstructor = constructor;
+        return (source, depth) -> {
+            Map<Object, Object> map = (Map<Object, Object>) source;
+            Map<Object, Object> target;
+            if (finalConstructor != null) {
+                target = (Map<Object, Object>) (Object) finalConstructor.invokeExact();
+            } else if (type == LinkedHashMap.class) {
+                target = emptyLinkedHashMap((LinkedHashMap<Object, Object>) map);
+            } else if (map instanceof ConcurrentSkipListMap<Object, Object> sortedMap) {
+                target = new ConcurrentSkipListMap<>(sortedMap.comparator());
+            } else if (map instanceof SortedMap<Object, Object> sortedMap) {
+                target = new TreeMap<>(sortedMap.comparator());
+            } else {
+                target = new LinkedHashMap<>(Math.max(16, (int) (map.size() / .75f) + 1));
+            }
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                target.put(copy(entry.getKey(), depth), copy(entry.getValue(), depth));
+            }
+            return target;
+        };
+    }
+
+    /**
+     * 与source构造参数(accessOrder)相同的空LinkedHashMap
+     */
+    private static LinkedHashMap<Object, Object> emptyLinkedHashMap(LinkedHashMap<Object, Object> source) throws IOException, ClassNotFoundException {
+        int capacity = Math.max(16, (int) (source.size() / .75f) + 1);
+        if (ACCESS_ORDER != null) {
+            return new LinkedHashMap<>(capacity, .75f, (boolean) ACCESS_ORDER.get(source));
+        }
+        // accessOrder没有公开的读取方式，序列化时把所有元素替换为null，反序列化得到accessOrder相同的Map后清空
+        LinkedHashMap<Object, Object> target = deserialize(serialize(source));
+        target.clear();
+        return target;
+    }
+
+    private static byte[] serialize(Object root) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes) {
+            {
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) {
+                return obj == root ? obj : null;
+            }
+        }) {
+            out.writeObject(root);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static <T> T deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (T) in.readObject();
+        }
+    }
+
+    private static VarHandle accessOrderHandle() {
+        try {
+            return MethodHandles.privateLookupIn(LinkedHashMap.class, LOOKUP).findVarHandle(LinkedHashMap.class, "accessOrder", boolean.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Copier recordCopier(Class<?> type) throws ReflectiveOperationException {
+        RecordComponent[] components = type.getRecordComponents();
+        MethodHandle[] accessors = new MethodHandle[components.length];
+        Class<?>[] parameterTypes = new Class<?>[components.length];
+        for (int i = 0; i < components.length; i++) {
+            Method accessor = components[i].getAccessor();
+            accessor.setAccessible(true);
+            accessors[i] = LOOKUP.unreflect(accessor).asType(MethodType.methodType(Object.class, Object.class));
+            parameterTypes[i] = components[i].getType();
+        }
+        Constructor<?> canonical = type.getDeclaredConstructor(parameterTypes);
+        canonical.setAccessible(true);
+        MethodHandle constructor = LOOKUP.unreflectConstructor(canonical)
+                .asType(MethodType.methodType(Object.class, parameterTypes))
+                .asSpreader(Object[].class, components.length);
+        return (source, depth) -> {
+            Object[] args = new Object[accessors.length];
+            for (int i = 0; i < accessors.length; i++) {
+                Object value = (Object) accessors[i].invokeExact(source);
+                args[i] = components[i].getType().isPrimitive() ? value : copy(value, depth);
+            }
+            return (Object) constructor.invokeExact(args);
+        };
+    }
+
+    private static Copier objectCopier(Class<?> type) throws ReflectiveOperationException {
+        MethodHandle constructor = noArgConstructor(type);
+        if (constructor == null) {
+            throw new NoSuchMethodException(type.getName() + ".<init>()");
+        }
+        List<FieldCopier> fieldCopiers = new ArrayList<>();
+        int modifiers = Modifier.STATIC | Modifier.TRANSIENT;
+        for (Class<?> clazz = type; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if ((field.getModifiers() & modifiers) != 0 || field.isAnnotationPresent(Transient.class)) {
+                    continue;
+                }
+                fieldCopiers.add(fieldCopier(field));
+            }
+        }
+        FieldCopier[] copiers = fieldCopiers.toArray(new FieldCopier[0]);
+        return (source, depth) -> {
+            Object target = (Object) constructor.invokeExact();
+            for (FieldCopier copier : copiers) {
+                copier.copy(source, target, depth);
+            }
+            return target;
+        };
+    }
+
+    @FunctionalInterface
+    private interface FieldCopier {
+        void copy(Object source, Object target, int depth) throws Throwable;
+    }
+
+    private static FieldCopier fieldCopier(Field field) throws IllegalAccessException {
+        field.setAccessible(true);
+        Class<?> type = field.getType();
+        Class<?> valueType = type.isPrimitive() ? type : Object.class;
+        MethodHandle getter = LOOKUP.unreflectGetter(field).asType(MethodType.methodType(valueType, Object.class));
+        MethodHandle setter = LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, valueType));
+        if (type == boolean.class) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (boolean) getter.invokeExact(s));
+            };
+        } else if (type == byte.class) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (byte) getter.invokeExact(s));
+            };
+        } else if (type == short.class) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (short) getter.invokeExact(s));
+            };
+        } else if (type == char.class) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (char) getter.invokeExact(s));
+            };
+        } else if (type == int.class) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (int) getter.invokeExact(s));
+            };
+        } else if (type == long.class) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (long) getter.invokeExact(s));
+            };
+        } else if (type == float.class) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (float) getter.invokeExact(s));
+            };
+        } else if (type == double.class) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (double) getter.invokeExact(s));
+            };
+        } else if (isImmutable(type) && Modifier.isFinal(type.getModifiers())) {
+            return (s, t, d) -> {
+                setter.invokeExact(t, (Object) getter.invokeExact(s));
+            };
+        }
+        return (s, t, d) -> {
+                setter.invokeExact(t, copy((Object) getter.invokeExact(s), d));
+            };
+    }
+
+    private static MethodHandle noArgConstructor(Class<?> type) {
+        if (type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+            return null;
+        }
         try {
-            // 将对象写入字节流
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
-            objectOutputStream.writeObject(obj);
-
-            // 从字节流中读取并创建新的对象
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(byteArrayOutputStream.toByteArray());
-            ObjectInputStream objectInputStream = new ObjectInputStream(byteArrayInputStream);
-            return (T) objectInputStream.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            log.error("ObjectCloner clone error", e);
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return LOOKUP.unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
             return null;
         }
     }
@@ -3,7 +3,7 @@ package com.game.orm;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+@SpringBootTest(properties = "orm.journal.enabled=false")
 class OrmApplicationTests {
 
     @Test
@@ -0,0 +1,50 @@
+package com.game.orm.base;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventBusTest {
+
+    @Test
+    public void testSubmitAsync() throws Exception {
+        CountDownLatch registered = new CountDownLatch(1);
+        CompletableFuture<Boolean> onTaskBus = EventBus.submitAsync(1L, () -> registered.await(5, TimeUnit.SECONDS), 1L)
+                .thenApply(_ -> TaskBus.currentExecutor() == TaskBus.executorOf(1L));
+        registered.countDown();
+        assertTrue(onTaskBus.get(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Integer> failed = EventBus.submitAsync(1L, () -> {
+            throw new IllegalStateException("io error");
+        });
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+
+    @Test
+    public void testExecuteBatch() throws Exception {
+        List<Integer> order = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int n = i;
+            tasks.add(() -> {
+                if (n == 50) {
+                    throw new IllegalStateException("ignored");
+                }
+                order.add(n);
+            });
+        }
+        EventBus.executeBatch(2L, tasks);
+        EventBus.submitAsync(2L, () -> null).get(5, TimeUnit.SECONDS);
+        assertEquals(99, order.size());
+        assertFalse(order.contains(50));
+        assertEquals(99, order.getLast());
+    }
+}
@@ -0,0 +1,148 @@
+package com.game.orm.base;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeyRouteTest {
+
+    /**
+     * 不经过TaskBus的映射表，记录移除和重新分发
+     */
+    private static final class TestRoutes implements KeyRoute.Routes {
+        private final ExecutorService[] executors;
+        private final List<KeyRoute> removed = new CopyOnWriteArrayList<>();
+
+        private TestRoutes(ExecutorService[] executors) {
+            this.executors = executors;
+        }
+
+        @Override
+        public void awaitHashed(int index) {
+        }
+
+        @Override
+        public void remove(KeyRoute route) {
+            removed.add(route);
+        }
+
+        @Override
+        public void dispatch(Object key, Object coalesceKey, Runnable command) {
+            executors[0].execute(command);
+        }
+    }
+
+    @Test
+    public void testMigrateKeepsOrder() throws Exception {
+        ExecutorService[] executors = {Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor()};
+        KeyRoute route = new KeyRoute("world-boss", executors, 0, new TestRoutes(executors));
+        List<Integer> order = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            int n = i;
+            route.execute(() -> {
+                order.add(n);
+                threads.add(Thread.currentThread());
+            });
+            if (i == 50_000) {
+                assertTrue(route.migrate(1));
+                assertFalse(route.migrate(1));
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            executors[0].submit(() -> {
+            }).get(10, TimeUnit.SECONDS);
+            executors[1].submit(() -> {
+            }).get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(1, route.index());
+        assertEquals(100_000, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, order.get(i));
+        }
+        // 迁移后的任务都在目标分区执行
+        assertNotEquals(threads.getFirst(), threads.getLast());
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMigrateWithFullQueue() throws Exception {
+        // 原分区队列满、提交方在BLOCK下等待时迁移，屏障不能被丢弃，也不能因锁互相等待
+        ExecutorService[] executors = new ExecutorService[2];
+        for (int i = 0; i < executors.length; i++) {
+            executors[i] = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 4, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.BLOCK,
+                    (_, _) -> fail("rejected"), new CustomizableThreadFactory("route-test-" + i));
+        }
+        KeyRoute route = new KeyRoute(5L, executors, 0, new TestRoutes(executors));
+        CountDownLatch blocked = new CountDownLatch(1);
+        route.execute(() -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        ExecutorService producers = Executors.newFixedThreadPool(2);
+        Future<?> producer = producers.submit(() -> {
+            for (int i = 0; i < 100; i++) {
+                int n = i;
+                route.execute(() -> order.add(n));
+            }
+        });
+        Future<Boolean> migrated = producers.submit(() -> route.migrate(1));
+        Thread.sleep(100);
+        blocked.countDown();
+        producer.get(10, TimeUnit.SECONDS);
+        assertTrue(migrated.get(10, TimeUnit.SECONDS));
+        CompletableFuture<Void> last = new CompletableFuture<>();
+        route.execute(() -> last.complete(null));
+        last.get(10, TimeUnit.SECONDS);
+        assertEquals(1, route.index());
+        assertEquals(100, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, order.get(i));
+        }
+        producers.shutdown();
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testReturnHome() throws Exception {
+        ExecutorService[] executors = {Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor()};
+        TestRoutes routes = new TestRoutes(executors);
+        KeyRoute route = new KeyRoute("guild", executors, 0, routes);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        route.execute(() -> order.add(0));
+        assertTrue(route.migrate(1));
+        route.execute(() -> order.add(1));
+        // 等屏障在原分区执行完，迁移结束后才能再次迁移
+        executors[0].submit(() -> {
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals(1, route.index());
+        assertTrue(route.migrate(0));
+        route.execute(() -> order.add(2));
+        for (int i = 0; i < 3; i++) {
+            executors[0].submit(() -> {
+            }).get(10, TimeUnit.SECONDS);
+            executors[1].submit(() -> {
+            }).get(10, TimeUnit.SECONDS);
+        }
+        // 回到散列分区后从映射表移除，之后的提交重新分发，不能再迁移
+        assertEquals(List.of(route), routes.removed);
+        assertEquals(List.of(0, 1, 2), order);
+        assertFalse(route.migrate(1));
+        for (ExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.game.orm.base;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RingBufferExecutorTest {
+
+    @Test
+    public void testMultiProducer() throws Exception {
+        for (RingBufferExecutor.WaitStrategy strategy : RingBufferExecutor.WaitStrategy.values()) {
+            // 容量远小于任务数，覆盖队列满时的等待
+            RingBufferExecutor executor = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 64, 16, strategy, OverflowPolicy.BLOCK, (_, _) -> {
+            }, new CustomizableThreadFactory("ring-test"));
+            int producers = 4;
+            int count = 50_000;
+            List<List<Integer>> received = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                received.add(new ArrayList<>(count));
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(producers);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                List<Integer> list = received.get(p);
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < count; i++) {
+                        int n = i;
+                        executor.execute(() -> list.add(n));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            executor.execute(() -> {
+                throw new IllegalStateException("ignored");
+            });
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+            // 单个生产者提交的任务保持顺序
+            for (List<Integer> list : received) {
+                assertEquals(count, list.size(), strategy.name());
+                for (int i = 0; i < count; i++) {
+                    assertEquals(i, list.get(i));
+                }
+            }
+            assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {
+            }));
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        List<Object> rejected = new CopyOnWriteArrayList<>();
+        RingBufferExecutor reject = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 4, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.REJECT,
+                (key, _) -> rejected.add(key), new CustomizableThreadFactory("ring-reject"));
+        CountDownLatch blocked = new CountDownLatch(1);
+        reject.execute(() -> await(blocked));
+        for (int i = 0; i < 10; i++) {
+            reject.execute(i, null, () -> {
+            });
+        }
+        // 第一个任务可能还未被取出，容量4时至少拒绝5个
+        assertTrue(rejected.size() >= 5, "rejected " + rejected.size());
+        assertEquals(rejected.size(), reject.stats().rejected());
+        blocked.countDown();
+
+        RingBufferExecutor coalesce = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 4, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.COALESCE,
+                (_, _) -> fail("rejected"), new CustomizableThreadFactory("ring-coalesce"));
+        CountDownLatch coalesceBlocked = new CountDownLatch(1);
+        coalesce.execute(() -> await(coalesceBlocked));
+        List<String> executed = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String value = "a" + i;
+            coalesce.execute("a", "a", () -> executed.add(value));
+        }
+        coalesce.execute("b", "b", () -> executed.add("b"));
+        QueueStats stats = coalesce.stats();
+        assertTrue(stats.coalesced() > 0);
+        assertTrue(stats.depth() <= 6, "depth " + stats.depth());
+        coalesceBlocked.countDown();
+        // 不可合并的任务排在暂存任务之后
+        CompletableFuture<Void> last = new CompletableFuture<>();
+        coalesce.execute(() -> last.complete(null));
+        last.get(5, TimeUnit.SECONDS);
+        assertEquals("a99", executed.get(executed.size() - 2));
+        assertEquals("b", executed.getLast());
+        assertEquals(0, coalesce.stats().depth());
+
+        reject.shutdown();
+        coalesce.shutdown();
+    }
+
+    @Test
+    public void testConsumerSpill() throws Exception {
+        // 两个执行器的消费线程互相向对方已满的队列提交，不等待，任务按提交顺序全部执行
+        RingBufferExecutor a = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 4, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.BLOCK,
+                (_, _) -> fail("rejected"), new CustomizableThreadFactory("ring-a"));
+        RingBufferExecutor b = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 4, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.REJECT,
+                (_, _) -> fail("rejected"), new CustomizableThreadFactory("ring-b"));
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        // b为REJECT，外部线程先提交，之后b只接收消费线程的提交
+        b.execute(() -> {
+            for (int i = 0; i < 1000; i++) {
+                a.execute(() -> {
+                });
+            }
+            done.countDown();
+        });
+        a.execute(() -> {
+            for (int i = 0; i < 1000; i++) {
+                int n = i;
+                a.execute(() -> order.add(n));
+                b.execute(() -> {
+                });
+            }
+            a.execute(done::countDown);
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1000, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, order.get(i));
+        }
+        a.shutdown();
+        b.shutdown();
+    }
+
+    @Test
+    public void testShutdownNow() throws Exception {
+        RingBufferExecutor executor = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 4, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.COALESCE,
+                (_, _) -> fail("rejected"), new CustomizableThreadFactory("ring-stop"));
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Integer> executed = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int n = i;
+            executor.execute(i, i, () -> executed.add(n));
+        }
+        List<Runnable> remaining = executor.shutdownNow();
+        assertEquals(10, remaining.size());
+        assertTrue(executor.isTerminated());
+        assertTrue(executed.isEmpty());
+        remaining.forEach(Runnable::run);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), executed);
+    }
+
+    @Test
+    public void testCrossBusBound() throws Exception {
+        // TaskBus消费线程向EventBus已满的队列提交按溢出策略处理，EventBus消费线程向TaskBus提交依然不等待不拒绝
+        List<Object> taskRejected = new CopyOnWriteArrayList<>();
+        List<Object> eventRejected = new CopyOnWriteArrayList<>();
+        RingBufferExecutor task = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 4, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.REJECT,
+                (key, _) -> taskRejected.add(key), new CustomizableThreadFactory("ring-task"));
+        RingBufferExecutor event = new RingBufferExecutor(PartitionExecutor.Bus.EVENT, 4, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.REJECT,
+                (key, _) -> eventRejected.add(key), new CustomizableThreadFactory("ring-event"));
+        CountDownLatch taskBlocked = new CountDownLatch(1);
+        CountDownLatch eventBlocked = new CountDownLatch(1);
+        task.execute(() -> await(taskBlocked));
+        event.execute(() -> await(eventBlocked));
+
+        CountDownLatch done = new CountDownLatch(2);
+        // 被提交方的消费线程已阻塞，从同一总线的另一个执行器的消费线程提交
+        RingBufferExecutor taskSide = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 16, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.BLOCK,
+                (_, _) -> fail("rejected"), new CustomizableThreadFactory("ring-task-side"));
+        RingBufferExecutor eventSide = new RingBufferExecutor(PartitionExecutor.Bus.EVENT, 16, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.BLOCK,
+                (_, _) -> fail("rejected"), new CustomizableThreadFactory("ring-event-side"));
+        taskSide.execute(() -> {
+            for (int i = 0; i < 10; i++) {
+                event.execute(i, null, () -> {
+                });
+            }
+            done.countDown();
+        });
+        eventSide.execute(() -> {
+            for (int i = 0; i < 10; i++) {
+                task.execute(i, null, () -> {
+                });
+            }
+            done.countDown();
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // 第一个任务可能还未被取出，容量4时至少拒绝5个
+        assertTrue(eventRejected.size() >= 5, "rejected " + eventRejected.size());
+        assertTrue(taskRejected.isEmpty());
+        taskBlocked.countDown();
+        eventBlocked.countDown();
+        for (RingBufferExecutor executor : List.of(task, event, taskSide, eventSide)) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownRace() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            LongAdder accepted = new LongAdder();
+            LongAdder executed = new LongAdder();
+            LongAdder rejected = new LongAdder();
+            RingBufferExecutor executor = new RingBufferExecutor(PartitionExecutor.Bus.TASK, 1024, 16, RingBufferExecutor.WaitStrategy.PARK, OverflowPolicy.BLOCK,
+                    (_, _) -> rejected.increment(), new CustomizableThreadFactory("ring-shutdown"));
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            CountDownLatch started = new CountDownLatch(4);
+            for (int p = 0; p < 4; p++) {
+                pool.execute(() -> {
+                    started.countDown();
+                    try {
+                        while (true) {
+                            executor.execute(executed::increment);
+                            accepted.increment();
+                        }
+                    } catch (RejectedExecutionException e) {
+                        // 关闭后退出
+                    }
+                });
+            }
+            started.await();
+            executor.shutdown();
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            // 没有抛出拒绝异常的提交都被执行，或在等待队列空位时关闭而交给拒绝处理
+            assertEquals(accepted.sum(), executed.sum() + rejected.sum());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
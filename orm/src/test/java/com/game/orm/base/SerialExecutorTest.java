@@ -0,0 +1,78 @@
+package com.game.orm.base;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SerialExecutorTest {
+
+    @Test
+    public void testOrderAndIsolation() throws Exception {
+        ExecutorService carrier = Executors.newVirtualThreadPerTaskExecutor();
+        SerialExecutor slow = new SerialExecutor(PartitionExecutor.Bus.EVENT, carrier, Integer.MAX_VALUE, OverflowPolicy.BLOCK, (_, _) -> {
+        });
+        SerialExecutor fast = new SerialExecutor(PartitionExecutor.Bus.EVENT, carrier, Integer.MAX_VALUE, OverflowPolicy.BLOCK, (_, _) -> {
+        });
+        CountDownLatch blocked = new CountDownLatch(1);
+        slow.execute(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // 另一个邮箱不受阻塞影响，且保持提交顺序
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            int n = i;
+            fast.execute(() -> order.add(n));
+        }
+        fast.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < order.size(); i++) {
+            assertEquals(i, order.get(i));
+        }
+        assertEquals(10_000, order.size());
+        assertFalse(slow.submit(() -> {
+        }).isDone());
+
+        blocked.countDown();
+        slow.shutdown();
+        assertTrue(slow.awaitTermination(5, TimeUnit.SECONDS));
+        carrier.shutdown();
+    }
+
+    @Test
+    public void testShutdownNow() throws Exception {
+        ExecutorService carrier = Executors.newVirtualThreadPerTaskExecutor();
+        SerialExecutor executor = new SerialExecutor(PartitionExecutor.Bus.EVENT, carrier, 4, OverflowPolicy.BLOCK, (_, _) -> {
+        });
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        List<Integer> executed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int n = i;
+            executor.execute(() -> executed.add(n));
+        }
+        // 剩余任务交还调用方，不再执行
+        assertEquals(3, executor.shutdownNow().size());
+        assertTrue(executor.isTerminated());
+        assertTrue(executed.isEmpty());
+        carrier.shutdown();
+    }
+}
@@ -0,0 +1,92 @@
+package com.game.orm.entity;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FingerprintTest {
+
+    private static long[] fingerprint(Object value) {
+        Fingerprint fingerprint = new Fingerprint().reset();
+        fingerprint.putValue(value);
+        fingerprint.finish();
+        return new long[]{fingerprint.high(), fingerprint.low()};
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertArrayEquals(fingerprint("小明"), fingerprint(new String("小明")));
+        assertFalse(Arrays.equals(fingerprint("小明"), fingerprint("小黑")));
+        assertFalse(Arrays.equals(fingerprint(0L), fingerprint(null)));
+
+        // Set、Map与迭代顺序无关
+        assertArrayEquals(fingerprint(new LinkedHashSet<>(List.of(1L, 2L, 3L))), fingerprint(new LinkedHashSet<>(List.of(3L, 2L, 1L))));
+        assertFalse(Arrays.equals(fingerprint(List.of(1L, 2L)), fingerprint(List.of(2L, 1L))));
+
+        Map<Long, PlayerEntity> map = new HashMap<>();
+        PlayerEntity player = new PlayerEntity();
+        player.setId(1L);
+        player.setName("小明");
+        map.put(1L, player);
+        long[] before = fingerprint(map);
+        player.setLevel(2);
+        assertFalse(Arrays.equals(before, fingerprint(map)));
+    }
+
+    private static long[] fingerprint(Class<?> declaredType, Object value) {
+        Fingerprint fingerprint = new Fingerprint().reset();
+        fingerprint.putValue(declaredType, value);
+        fingerprint.finish();
+        return new long[]{fingerprint.high(), fingerprint.low()};
+    }
+
+    @Test
+    public void testRuntimeType() {
+        // 声明类型不是final时运行时类型不同，写入DB的BSON类型也不同
+        assertFalse(Arrays.equals(fingerprint(Object.class, 1), fingerprint(Object.class, 1L)));
+        assertFalse(Arrays.equals(fingerprint(List.of(1)), fingerprint(List.of(1L))));
+        assertFalse(Arrays.equals(fingerprint(Map.of("k", 1)), fingerprint(Map.of("k", 1L))));
+        assertArrayEquals(fingerprint(Long.class, 1L), fingerprint(Long.class, 1L));
+        // 集合实现类不影响写入结果
+        assertArrayEquals(fingerprint(List.class, List.of(1L)), fingerprint(List.class, new ArrayList<>(List.of(1L))));
+    }
+
+    @Test
+    public void testNonOpenTypes() {
+        // JDK内部类不能反射读取字段，按toString和hashCode计算
+        assertArrayEquals(fingerprint(Duration.ofSeconds(1)), fingerprint(Duration.ofMillis(1000)));
+        assertFalse(Arrays.equals(fingerprint(Duration.ofSeconds(1)), fingerprint(Duration.ofSeconds(2))));
+        OffsetDateTime time = OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        assertFalse(Arrays.equals(fingerprint(time), fingerprint(time.plusSeconds(1))));
+        assertArrayEquals(fingerprint(Optional.of(List.of(1L))), fingerprint(Optional.of(List.of(1L))));
+        assertFalse(Arrays.equals(fingerprint(Optional.empty()), fingerprint(Optional.of(1L))));
+
+        AtomicInteger counter = new AtomicInteger();
+        long[] before = fingerprint(Map.of("counter", counter));
+        counter.incrementAndGet();
+        assertFalse(Arrays.equals(before, fingerprint(Map.of("counter", counter))));
+    }
+
+    @Test
+    public void testCheckUpdateFields() {
+        PlayerEntity player = new PlayerEntity();
+        player.setId(1L);
+        player.setName("小明");
+        assertTrue(player.checkUpdateFields());
+        player.getUpdateQueue().clear();
+        assertFalse(player.checkUpdateFields());
+
+        player.setName(new String("小明"));
+        assertFalse(player.checkUpdateFields());
+
+        player.setName(null);
+        assertTrue(player.checkUpdateFields());
+        assertTrue(player.getUpdateQueue().poll().getUpdateObject().toJson().contains("\"name\": null"));
+    }
+}
@@ -1,11 +1,9 @@
 package com.game.orm.entity;
 
+import com.game.orm.collection.TrackedSet;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 
-import java.util.HashSet;
-import java.util.Set;
-
 @Data
 @EqualsAndHashCode(callSuper = true)
 public class GuildEntity extends AbstractEntity<Long> {
@@ -13,5 +11,5 @@ public class GuildEntity extends AbstractEntity<Long> {
     private int level;
 
     private long leaderId;
-    private Set<Long> memberIds = new HashSet<>();
+    private TrackedSet<Long> memberIds = new TrackedSet<>();
 }
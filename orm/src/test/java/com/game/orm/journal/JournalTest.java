@@ -0,0 +1,163 @@
+package com.game.orm.journal;
+
+import com.game.orm.config.OrmProperties;
+import com.game.orm.entity.GuildEntity;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 只验证日志文件本身，记录都已确认，重放时不访问DB
+ */
+public class JournalTest {
+
+    @TempDir
+    Path dir;
+
+    private MongoClient client;
+
+    @BeforeEach
+    public void setUp() {
+        client = MongoClients.create("mongodb://localhost:1/?serverSelectionTimeoutMS=100");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+    }
+
+    private Journal start() {
+        OrmProperties properties = new OrmProperties();
+        properties.getJournal().setEnabled(true);
+        properties.getJournal().setDir(dir.toString());
+        properties.getJournal().setSegmentSize(64 * 1024);
+        Journal journal = new Journal();
+        ReflectionTestUtils.setField(journal, "mongoTemplate", new MongoTemplate(client, "test"));
+        ReflectionTestUtils.setField(journal, "properties", properties);
+        journal.start();
+        return journal;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    /**
+     * 写入一个实体的两条无法合并的记录，批量写入只发送第一个，之后再发送第二个
+     */
+    private void writeGuild() {
+        GuildEntity guild = new GuildEntity();
+        guild.setId(1L);
+        guild.getMemberIds().add(10001L);
+        guild.captureBaseline();
+        guild.getMemberIds().remove(10001L);
+        guild.getMemberIds().add(10002L);
+        assertTrue(guild.checkUpdateFields());
+
+        List<Update> updates = guild.drainUpdates();
+        assertEquals(2, updates.size());
+        guild.requeueUpdates(updates.subList(1, updates.size()));
+        guild.writeSucceeded();
+        assertEquals(1, guild.drainUpdates().size());
+        guild.writeSucceeded();
+    }
+
+    @Test
+    public void testAckSentPrefix() throws IOException {
+        Journal journal = start();
+        try {
+            writeGuild();
+        } finally {
+            journal.stop();
+        }
+        List<Long> updateSeqs = new ArrayList<>();
+        List<Long> acks = new ArrayList<>();
+        List<Path> files = segments();
+        for (int i = 0; i < files.size(); i++) {
+            journal.read(files, i, 0, (seq, record) -> {
+                if (record.containsKey("a")) {
+                    acks.add(record.getLong("a"));
+                } else {
+                    updateSeqs.add(seq);
+                }
+            });
+        }
+        assertEquals(2, updateSeqs.size());
+        // 第一次只确认已发送的第一条，放回队列的第二条在之后的写入成功后确认
+        assertEquals(updateSeqs, acks);
+    }
+
+    @Test
+    public void testTornTail() throws IOException {
+        Journal journal = start();
+        try {
+            writeGuild();
+        } finally {
+            journal.stop();
+        }
+        Path file = segments().getFirst();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 长度已写入、内容只落盘了一部分的记录
+            ByteBuffer torn = ByteBuffer.allocate(24).putInt(100).putInt(0x12345678).putLong(99).putInt(100).putInt(1);
+            channel.write(torn.flip(), end(channel));
+        }
+        Journal restarted = assertDoesNotThrow(this::start);
+        assertSame(restarted, Journal.current());
+        restarted.stop();
+    }
+
+    @Test
+    public void testCorruptedMiddle() throws IOException {
+        Journal journal = start();
+        try {
+            writeGuild();
+        } finally {
+            journal.stop();
+        }
+        try (FileChannel channel = FileChannel.open(segments().getFirst(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 第一条记录BSON中间的一个字节
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, 24);
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (b.get(0) ^ 0xFF)}), 24);
+        }
+        assertThrows(IllegalStateException.class, this::start);
+        assertNull(Journal.current());
+    }
+
+    /**
+     * 最后一条记录之后的位置
+     */
+    private static long end(FileChannel channel) throws IOException {
+        long position = 0;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (true) {
+            length.clear();
+            channel.read(length, position);
+            int n = length.flip().getInt();
+            if (n == 0) {
+                return position;
+            }
+            position += 16 + n;
+        }
+    }
+}
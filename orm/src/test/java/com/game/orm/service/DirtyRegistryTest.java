@@ -0,0 +1,87 @@
+package com.game.orm.service;
+
+import com.game.orm.base.TaskBus;
+import com.game.orm.entity.AbstractEntity;
+import com.game.orm.entity.GuildEntity;
+import com.game.orm.entity.PlayerEntity;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirtyRegistryTest {
+
+    private static PlayerEntity player(long id) {
+        PlayerEntity player = new PlayerEntity();
+        player.setId(id);
+        return player;
+    }
+
+    /**
+     * 推进一整圈并等待检测任务执行完
+     */
+    private static List<AbstractEntity<?>> cycle(DirtyRegistry registry, int slotCount, long... ids) throws Exception {
+        List<AbstractEntity<?>> flushed = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < slotCount; i++) {
+            registry.advance(flushed::add);
+        }
+        for (long id : ids) {
+            TaskBus.executorOf(id).submit(() -> {
+            }).get(5, TimeUnit.SECONDS);
+        }
+        return flushed;
+    }
+
+    @Test
+    public void testTouchOnce() throws Exception {
+        DirtyRegistry registry = new DirtyRegistry(4);
+        PlayerEntity player = player(1L);
+        registry.touch(player);
+        registry.touch(player);
+        assertEquals(List.of(player), cycle(registry, 4, 1L));
+        // 检测后登记已清除
+        assertTrue(cycle(registry, 4, 1L).isEmpty());
+    }
+
+    @Test
+    public void testFlushOnRouteThread() throws Exception {
+        DirtyRegistry registry = new DirtyRegistry(1);
+        registry.touch(player(1L));
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        registry.advance(_ -> threads.add(Thread.currentThread()));
+        Thread route = TaskBus.executorOf(1L).submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of(route), threads);
+    }
+
+    @Test
+    public void testPinnedAndPendingStayRegistered() throws Exception {
+        DirtyRegistry registry = new DirtyRegistry(2);
+        PlayerEntity pinned = player(1L);
+        pinned.pin();
+        PlayerEntity clean = player(2L);
+        GuildEntity pending = new GuildEntity();
+        pending.setId(3L);
+        pending.captureBaseline();
+        pending.getMemberIds().add(10001L);
+        assertTrue(pending.checkUpdateFields());
+        registry.touch(pinned);
+        registry.touch(clean);
+        registry.touch(pending);
+
+        assertEquals(3, cycle(registry, 2, 1L, 2L, 3L).size());
+        // 固定的和写入未确认的检测后重新登记，下一圈再次检测
+        List<AbstractEntity<?>> next = cycle(registry, 2, 1L, 2L, 3L);
+        assertEquals(2, next.size());
+        assertTrue(next.contains(pinned));
+        assertTrue(next.contains(pending));
+
+        pinned.unpin();
+        pending.drainUpdates();
+        pending.writeSucceeded();
+        assertEquals(2, cycle(registry, 2, 1L, 2L, 3L).size());
+        assertTrue(cycle(registry, 2, 1L, 2L, 3L).isEmpty());
+    }
+}
@@ -0,0 +1,66 @@
+package com.game.orm.service;
+
+import com.game.orm.entity.AbstractEntity;
+import com.game.orm.entity.PlayerEntity;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PinAwareCacheTest {
+
+    private static PlayerEntity player(long id) {
+        PlayerEntity player = new PlayerEntity();
+        player.setId(id);
+        return player;
+    }
+
+    @Test
+    public void testPinnedWeightIsZero() {
+        PlayerEntity player = player(1L);
+        assertEquals(1, new PinAwareWeigher(false).weigh(1L, player));
+        assertTrue(new PinAwareWeigher(true).weigh(1L, player) > 0);
+        player.pin();
+        assertEquals(0, new PinAwareWeigher(false).weigh(1L, player));
+        assertEquals(0, new PinAwareWeigher(true).weigh(1L, player));
+        player.unpin();
+        assertEquals(1, new PinAwareWeigher(false).weigh(1L, player));
+    }
+
+    @Test
+    public void testPinnedNotEvicted() {
+        AtomicLong now = new AtomicLong();
+        Cache<Object, AbstractEntity<?>> cache = Caffeine.newBuilder()
+                .expireAfter(new PinAwareExpiry(TimeUnit.SECONDS.toNanos(60)))
+                .maximumWeight(2)
+                .weigher(new PinAwareWeigher(false))
+                .executor(Runnable::run)
+                .ticker(now::get)
+                .build();
+        PlayerEntity pinned = player(1L);
+        pinned.pin();
+        cache.put(1L, pinned);
+        // 放入后才固定的实体，与EntityService.reweigh一样以原值重新写入
+        PlayerEntity later = player(2L);
+        cache.put(2L, later);
+        later.pin();
+        cache.asMap().computeIfPresent(2L, (k, v) -> v);
+        for (long id = 3; id < 100; id++) {
+            cache.put(id, player(id));
+            cache.cleanUp();
+        }
+        assertSame(pinned, cache.getIfPresent(1L));
+        assertSame(later, cache.getIfPresent(2L));
+        assertTrue(cache.estimatedSize() <= 4);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(120));
+        cache.cleanUp();
+        assertSame(pinned, cache.getIfPresent(1L));
+        assertSame(later, cache.getIfPresent(2L));
+        assertEquals(2, cache.estimatedSize());
+    }
+}
@@ -0,0 +1,28 @@
+package com.game.orm.test;
+
+import com.game.orm.util.BloomFilter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BloomFilterTest {
+
+    @Test
+    public void testMightContain() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        for (long id = 0; id < 10_000; id++) {
+            filter.put(id);
+        }
+        for (long id = 0; id < 10_000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+        int falsePositive = 0;
+        for (long id = 10_000; id < 20_000; id++) {
+            if (filter.mightContain(id)) {
+                falsePositive++;
+            }
+        }
+        assertTrue(falsePositive < 300, "false positive " + falsePositive);
+        assertFalse(new BloomFilter(100, 0.01).mightContain("player"));
+    }
+}
@@ -0,0 +1,28 @@
+package com.game.orm.test;
+
+import com.game.orm.entity.GuildEntity;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CaptureBaselineTest {
+
+    @Test
+    public void testCaptureBaseline() {
+        GuildEntity guild = new GuildEntity();
+        guild.setId(2L);
+        guild.setName("guild");
+        guild.setLevel(3);
+        guild.getMemberIds().add(100L);
+        guild.captureBaseline();
+        assertFalse(guild.checkUpdateFields());
+
+        guild.setLevel(4);
+        assertTrue(guild.checkUpdateFields());
+        Document set = (Document) guild.getUpdateQueue().peekFirst().getUpdateObject().get("$set");
+        assertEquals(Set.of("level"), set.keySet());
+    }
+}
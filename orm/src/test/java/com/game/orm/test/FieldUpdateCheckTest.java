@@ -1,6 +1,7 @@
 package com.game.orm.test;
 
 import com.alibaba.fastjson2.JSON;
+import com.game.orm.util.ObjectCloner;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.Gson;
@@ -317,6 +318,10 @@ public class FieldUpdateCheckTest {
         System.out.println("=".repeat(100));
         testMapObject();
 
+        System.out.println("\n\n场景4: 深拷贝 FastJSON序列化往返 vs ObjectCloner");
+        System.out.println("=".repeat(100));
+        testDeepCopy();
+
         System.out.println("\n\n" + "=".repeat(100));
         System.out.println("测试完成!");
         System.out.println("=".repeat(100));
@@ -389,6 +394,49 @@ public class FieldUpdateCheckTest {
         printResults(results);
     }
 
+    private static void testDeepCopy() {
+        List<SimpleObject> list = new ArrayList<>();
+        Map<Long, SimpleObject> map = new HashMap<>();
+        for (int i = 0; i < LIST_SIZE; i++) {
+            list.add(createSimpleObject((long) i));
+            map.put((long) i, createSimpleObject((long) i));
+        }
+
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("SimpleObject", createSimpleObject(1L));
+        values.put("List", list);
+        values.put("Map", map);
+        values.forEach((name, value) -> {
+            Map<String, TestResult> results = new LinkedHashMap<>();
+            results.put("FastJSON", performCopyTest("FastJSON", () -> JSON.parseObject(JSON.toJSONString(value), value.getClass())));
+            results.put("Cloner", performCopyTest("Cloner", () -> ObjectCloner.copy(value)));
+            System.out.println("\n" + name + ":");
+            printResults(results);
+        });
+    }
+
+    private static TestResult performCopyTest(String libName, Runnable copy) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            copy.run();
+        }
+        List<Long> times = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            long startTime = System.nanoTime();
+            for (int i = 0; i < TEST_ITERATIONS; i++) {
+                copy.run();
+            }
+            times.add(System.nanoTime() - startTime);
+        }
+
+        Collections.sort(times);
+        TestResult result = new TestResult(libName);
+        result.minTimeMs = times.get(0) / 1_000_000;
+        result.maxTimeMs = times.get(times.size() - 1) / 1_000_000;
+        result.avgTimeMs = times.stream().mapToLong(Long::longValue).sum() / times.size() / 1_000_000;
+        result.medianTimeMs = times.get(times.size() / 2) / 1_000_000;
+        return result;
+    }
+
     private static TestResult performTest(Object checker, TestEntity entity, List<Field> fields) {
         String libName = checker.getClass().getSimpleName().replace("Checker", "");
 
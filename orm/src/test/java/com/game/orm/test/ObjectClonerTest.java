@@ -0,0 +1,93 @@
+package com.game.orm.test;
+
+import com.game.orm.collection.TrackedSet;
+import com.game.orm.entity.GuildEntity;
+import com.game.orm.util.ObjectCloner;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObjectClonerTest {
+
+    record Reward(int itemId, long count, List<String> tags) {
+    }
+
+    static class Bag {
+        private final Map<Long, Reward> rewards = new HashMap<>();
+        private int[] slots = {1, 2, 3};
+        private Set<Long> ids = new HashSet<>();
+    }
+
+    @Test
+    public void testCopy() {
+        Bag bag = new Bag();
+        bag.rewards.put(1L, new Reward(1001, 10L, new ArrayList<>(List.of("a"))));
+        bag.ids.add(Long.MAX_VALUE);
+
+        Bag copy = ObjectCloner.copy(bag);
+        assertNotSame(bag, copy);
+        assertNotSame(bag.rewards, copy.rewards);
+        assertNotSame(bag.slots, copy.slots);
+        assertArrayEquals(bag.slots, copy.slots);
+        assertEquals(bag.rewards, copy.rewards);
+        assertNotSame(bag.rewards.get(1L).tags(), copy.rewards.get(1L).tags());
+        // 元素类型保持不变
+        assertEquals(Long.class, copy.ids.iterator().next().getClass());
+
+        assertEquals(List.of(1, 2), ObjectCloner.copy(List.of(1, 2)));
+        TreeSet<Integer> sorted = new TreeSet<>(Comparator.reverseOrder());
+        sorted.addAll(List.of(1, 2, 3));
+        assertEquals(List.of(3, 2, 1), new ArrayList<>(ObjectCloner.copy(sorted)));
+    }
+
+    @Test
+    public void testCopyConstructorArgs() {
+        Comparator<Integer> reverse = Comparator.reverseOrder();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(reverse);
+        queue.addAll(List.of(1, 3, 2));
+        assertEquals(3, ObjectCloner.copy(queue).peek());
+        PriorityBlockingQueue<Integer> blockingQueue = new PriorityBlockingQueue<>(4, reverse);
+        blockingQueue.addAll(List.of(1, 3, 2));
+        assertEquals(3, ObjectCloner.copy(blockingQueue).peek());
+        ConcurrentSkipListSet<Integer> skipSet = new ConcurrentSkipListSet<>(reverse);
+        skipSet.addAll(List.of(1, 3, 2));
+        assertSame(reverse, ObjectCloner.copy(skipSet).comparator());
+        ConcurrentSkipListMap<Integer, String> skipMap = new ConcurrentSkipListMap<>(reverse);
+        skipMap.put(1, "a");
+        assertSame(reverse, ObjectCloner.copy(skipMap).comparator());
+
+        // accessOrder保留，值不需要可序列化
+        LinkedHashMap<Integer, Bag> lru = new LinkedHashMap<>(16, .75f, true);
+        lru.put(1, new Bag());
+        lru.put(2, new Bag());
+        lru.get(1);
+        LinkedHashMap<Integer, Bag> copy = ObjectCloner.copy(lru);
+        assertEquals(List.of(2, 1), new ArrayList<>(copy.keySet()));
+        assertNotSame(lru.get(2), copy.get(2));
+        copy.get(2);
+        assertEquals(List.of(1, 2), new ArrayList<>(copy.keySet()));
+        LinkedHashMap<Integer, Bag> insertionCopy = ObjectCloner.copy(new LinkedHashMap<>(copy));
+        insertionCopy.get(1);
+        assertEquals(List.of(1, 2), new ArrayList<>(insertionCopy.keySet()));
+    }
+
+    @Test
+    public void testCopyEntity() {
+        GuildEntity guild = new GuildEntity();
+        guild.setId(1L);
+        guild.setName("公会");
+        guild.getMemberIds().add(10001L);
+
+        GuildEntity copy = ObjectCloner.copy(guild);
+        assertEquals(guild.id(), copy.id());
+        assertEquals(guild.getName(), copy.getName());
+        assertEquals(guild.getMemberIds(), copy.getMemberIds());
+        assertInstanceOf(TrackedSet.class, copy.getMemberIds());
+        assertTrue(copy.getUpdateQueue().isEmpty());
+    }
+}
@@ -0,0 +1,75 @@
+package com.game.orm.test;
+
+import com.game.orm.cache.OffHeapStore;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapStoreTest {
+
+    @Test
+    public void testPutGet() {
+        OffHeapStore store = new OffHeapStore(1 << 20, 1);
+        byte[] data = "player".getBytes();
+        assertTrue(store.put(1L, data));
+        assertArrayEquals(data, store.get(1L));
+        assertNull(store.get(2L));
+        store.remove(1L);
+        assertNull(store.get(1L));
+        assertEquals(0, store.size());
+        assertEquals(0, store.usedBytes());
+    }
+
+    @Test
+    public void testTake() {
+        OffHeapStore store = new OffHeapStore(1 << 20, 1);
+        byte[] data = "player".getBytes();
+        assertTrue(store.put(1L, data));
+        assertArrayEquals(data, store.take(1L));
+        assertNull(store.take(1L));
+        assertEquals(0, store.size());
+        assertEquals(0, store.usedBytes());
+    }
+
+    @Test
+    public void testEvict() {
+        // 单段单页，1KB等级最多1024块
+        OffHeapStore store = new OffHeapStore(1 << 20, 1);
+        byte[] data = new byte[1000];
+        for (long id = 0; id < 2000; id++) {
+            assertTrue(store.put(id, data));
+        }
+        assertEquals(1024, store.size());
+        assertEquals(1 << 20, store.allocatedBytes());
+        assertNotNull(store.get(1999L));
+        assertFalse(store.put(-1L, new byte[(1 << 20) + 1]));
+    }
+
+    @Test
+    public void testReclaimPage() {
+        // 唯一的页被1KB等级占用后，其他等级回收这一页
+        OffHeapStore store = new OffHeapStore(1 << 20, 1);
+        for (long id = 0; id < 1024; id++) {
+            assertTrue(store.put(id, new byte[1000]));
+        }
+        assertTrue(store.put(-1L, new byte[100]));
+        assertNotNull(store.get(-1L));
+        assertEquals(1, store.size());
+        assertEquals(1 << 20, store.allocatedBytes());
+    }
+
+    @Test
+    public void testRebalance() {
+        // 4页都被1KB等级占用，128B等级回收到两页后与之持平，之后在等级内淘汰
+        OffHeapStore store = new OffHeapStore(4 << 20, 1);
+        for (long id = 0; id < 4096; id++) {
+            assertTrue(store.put(id, new byte[1000]));
+        }
+        for (long id = 10_000; id < 40_000; id++) {
+            assertTrue(store.put(id, new byte[100]));
+        }
+        assertEquals(2 * 1024 + 2 * 8192, store.size());
+        assertEquals(4 << 20, store.allocatedBytes());
+        assertNotNull(store.get(39_999L));
+    }
+}
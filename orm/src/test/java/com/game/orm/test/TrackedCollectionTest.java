@@ -0,0 +1,100 @@
+package com.game.orm.test;
+
+import com.game.orm.collection.TrackedList;
+import com.game.orm.collection.TrackedMap;
+import com.game.orm.collection.TrackedSet;
+import com.game.orm.entity.GuildEntity;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TrackedCollectionTest {
+
+    @Test
+    public void testTrackedSet() {
+        TrackedSet<Long> set = new TrackedSet<>(List.of(1L, 2L, 3L));
+        assertTrue(set.isReset());
+        set.commit();
+        assertFalse(set.isChanged());
+
+        set.add(4L);
+        set.remove(1L);
+        set.add(1L);
+        set.remove(2L);
+        assertEquals(Set.of(4L), set.added());
+        assertEquals(Set.of(2L), set.removed());
+
+        set.commit();
+        assertFalse(set.isChanged());
+        set.clear();
+        assertTrue(set.isReset());
+    }
+
+    @Test
+    public void testTrackedList() {
+        TrackedList<Integer> list = new TrackedList<>(List.of(1, 2, 3));
+        list.commit();
+        list.add(4);
+        assertEquals(List.of(4), list.appended());
+        assertFalse(list.isReset());
+
+        list.removeFirst();
+        assertTrue(list.isReset());
+        assertTrue(list.appended().isEmpty());
+
+        TrackedList<Integer> capped = new TrackedList<>(3);
+        capped.addAll(List.of(1, 2, 3));
+        capped.commit();
+        capped.add(4);
+        assertEquals(List.of(2, 3, 4), capped);
+        assertEquals(List.of(4), capped.appended());
+    }
+
+    @Test
+    public void testTrackedMap() {
+        TrackedMap<String, Integer> map = new TrackedMap<>();
+        map.put("a", 1);
+        map.put("b", 2);
+        map.commit();
+
+        map.put("a", 3);
+        map.remove("b");
+        map.entrySet().iterator().next().setValue(5);
+        assertEquals(Set.of("a"), map.changedKeys());
+        assertEquals(Set.of("b"), map.removedKeys());
+        assertEquals(5, map.get("a"));
+    }
+
+    @Test
+    public void testEntityCheckTrackedField() {
+        GuildEntity guild = new GuildEntity();
+        guild.setId(1L);
+        guild.getMemberIds().add(10001L);
+        assertTrue(guild.checkUpdateFields());
+        guild.getUpdateQueue().clear();
+
+        assertFalse(guild.checkUpdateFields());
+
+        guild.getMemberIds().add(10002L);
+        assertTrue(guild.checkUpdateFields());
+        Document update = guild.getUpdateQueue().poll().getUpdateObject();
+        Update.Modifier each = (Update.Modifier) update.get("$addToSet", Document.class).get("memberIds");
+        assertArrayEquals(new Object[]{10002L}, (Object[]) each.getValue());
+
+        guild.getMemberIds().remove(10001L);
+        guild.getMemberIds().add(10003L);
+        assertTrue(guild.checkUpdateFields());
+        assertEquals(2, guild.getUpdateQueue().size());
+        assertTrue(guild.getUpdateQueue().poll().getUpdateObject().containsKey("$pullAll"));
+        assertTrue(guild.getUpdateQueue().poll().getUpdateObject().containsKey("$addToSet"));
+
+        guild.setMemberIds(new TrackedSet<>(guild.getMemberIds()));
+        guild.getMemberIds().commit();
+        assertTrue(guild.checkUpdateFields());
+    }
+}
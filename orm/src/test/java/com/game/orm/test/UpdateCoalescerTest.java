@@ -0,0 +1,79 @@
+package com.game.orm.test;
+
+import com.game.orm.entity.GuildEntity;
+import com.game.orm.entity.UpdateCoalescer;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpdateCoalescerTest {
+
+    @Test
+    public void testCoalesce() {
+        Update first = new Update().set("name", "小明").set("level", 1);
+        first.addToSet("memberIds").each(1L, 2L);
+        Update second = new Update().set("level", 2);
+        second.addToSet("memberIds").each(3L);
+
+        List<Update> result = UpdateCoalescer.coalesce(List.of(first, second));
+        assertEquals(1, result.size());
+        Document update = result.getFirst().getUpdateObject();
+        assertEquals(2, update.get("$set", Document.class).get("level"));
+        Update.Modifier each = (Update.Modifier) update.get("$addToSet", Document.class).get("memberIds");
+        assertArrayEquals(new Object[]{1L, 2L, 3L}, (Object[]) each.getValue());
+    }
+
+    @Test
+    public void testCoalesceIntoSet() {
+        Update first = new Update().set("memberIds", Set.of(1L, 2L));
+        Update second = new Update().pullAll("memberIds", new Object[]{1L});
+        Update third = new Update();
+        third.addToSet("memberIds").each(3L);
+
+        List<Update> result = UpdateCoalescer.coalesce(List.of(first, second, third));
+        assertEquals(1, result.size());
+        assertEquals(Set.of(2L, 3L), result.getFirst().getUpdateObject().get("$set", Document.class).get("memberIds"));
+    }
+
+    @Test
+    public void testConflict() {
+        Update first = new Update().pullAll("memberIds", new Object[]{1L});
+        Update second = new Update().set("name", "小黑");
+        second.addToSet("memberIds").each(2L);
+
+        List<Update> result = UpdateCoalescer.coalesce(List.of(first, second));
+        assertEquals(2, result.size());
+        assertTrue(result.get(0).getUpdateObject().containsKey("$pullAll"));
+        assertTrue(result.get(1).getUpdateObject().containsKey("$addToSet"));
+
+        Update parent = new Update().set("items.1", 1);
+        Update child = new Update().set("items", List.of());
+        assertEquals(1, UpdateCoalescer.coalesce(List.of(parent, child)).size());
+        assertEquals(2, UpdateCoalescer.coalesce(List.of(child, parent)).size());
+    }
+
+    @Test
+    public void testEntityQueue() {
+        GuildEntity guild = new GuildEntity();
+        guild.setId(1L);
+        guild.setName("公会");
+        guild.checkUpdateFields();
+        for (int i = 0; i < 10; i++) {
+            guild.setLevel(i + 1);
+            guild.getMemberIds().add((long) i);
+            guild.checkUpdateFields();
+        }
+        assertEquals(1, guild.getUpdateQueue().size());
+        List<Update> updates = guild.drainUpdates();
+        assertEquals(1, updates.size());
+        assertTrue(guild.getUpdateQueue().isEmpty());
+
+        guild.requeueUpdates(updates);
+        assertEquals(1, guild.getUpdateQueue().size());
+    }
+}